@@ -0,0 +1,98 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Class to represent one end of the connection between the coordinator and a
+ * cohort. The streams are created once when the connection is made and then
+ * used for every transaction; messages are sent as EncodedMessage frames.
+ * Used by both CoordinatorServer (one per cohort) and CohortServer (one, to
+ * the coordinator).
+ **/
+public class CohortConnection {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out; //unbuffered, each frame goes out in a single write
+	private final String name; //eg: cohort/127.0.0.1:51234, for logs and metrics
+	private volatile boolean failed; //the connection broke or fell out of step, the cohort should leave the membership
+
+	/**
+	 * Constructor wraps a connected socket
+	 * @param socket the connected socket
+	 * @param name a name for the node at the other end
+	 **/
+	public CohortConnection(Socket socket, String name) throws IOException {
+		this.socket = socket;
+		this.socket.setTcpNoDelay(true); //our frames are small and we always wait for a reply
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = socket.getOutputStream();
+		this.name = name + socket.getRemoteSocketAddress();
+	}
+
+	/**
+	 * Method to send a message to the other end
+	 * @param message the encoded message to send
+	 **/
+	public void send(EncodedMessage message) throws IOException {
+		message.writeTo(out);
+	}
+
+	/**
+	 * Method to wait for and read the next message from the other end
+	 * @return the message received
+	 **/
+	public StockMessage receive() throws IOException, ClassNotFoundException {
+		return EncodedMessage.read(in);
+	}
+
+	/**
+	 * Method to set how long receive() waits before throwing SocketTimeoutException
+	 * @param millis the timeout in milliseconds, 0 waits forever
+	 **/
+	public void setTimeout(int millis) throws IOException {
+		socket.setSoTimeout(millis);
+	}
+
+	/**
+	 * Method to record that the connection is broken, or can no longer be
+	 * trusted to carry the reply to what we send next
+	 **/
+	public void markFailed() {
+		failed = true;
+	}
+
+	/**
+	 * Getter for whether the connection is broken
+	 * @return true if sending or receiving on this connection has failed, or timed out
+	 **/
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Getter for the name of the node at the other end
+	 * @return the name
+	 **/
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Method to close the connection. The node at the other end has left, so
+	 * its metrics are dropped too
+	 **/
+	public void close() throws IOException {
+		NodeMetrics.get().removeCohort(name);
+		socket.close();
+	}
+
+	/**
+	 * Get string representation of this connection
+	 * @return the name of the node at the other end
+	 **/
+	public String toString() {
+		return name;
+	}
+}
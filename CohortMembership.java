@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The set of cohorts the coordinator fans each transaction out to. Rather
+ * than a fixed array, membership is a series of immutable, numbered views: a
+ * transaction takes the current view when it starts and uses it throughout,
+ * while cohorts joining or leaving produce a new view for later transactions.
+ *
+ * Cohorts that connect while the coordinator is running wait in a joining
+ * queue until the coordinator is between transactions and can bring them up
+ * to date, see CoordinatorServer.updateMembership(...).
+ **/
+public class CohortMembership {
+
+	/**
+	 * One version of the membership, never modified once made
+	 **/
+	public static final class View {
+		private final long version;
+		private final CohortConnection[] cohorts;
+
+		private View(long version, CohortConnection[] cohorts) {
+			this.version = version;
+			this.cohorts = cohorts;
+		}
+
+		/**
+		 * Getter for the version of this view, bumped on every change
+		 * @return the version
+		 **/
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Getter for the cohorts in this view. The array is shared, don't modify it
+		 * @return the cohorts
+		 **/
+		public CohortConnection[] getCohorts() {
+			return cohorts;
+		}
+
+		/**
+		 * Getter for the number of cohorts in this view
+		 * @return the number of cohorts
+		 **/
+		public int size() {
+			return cohorts.length;
+		}
+
+		/**
+		 * Get string representation of this view
+		 * @return eg: v3[cohort/127.0.0.1:51234, cohort/127.0.0.1:51236]
+		 **/
+		public String toString() {
+			return "v" + version + Arrays.toString(cohorts);
+		}
+	}
+
+	private volatile View view = new View(0, new CohortConnection[0]);
+	private final ConcurrentLinkedQueue<CohortConnection> joining = new ConcurrentLinkedQueue<CohortConnection>();
+
+	/**
+	 * Getter for the current view
+	 * @return the current view
+	 **/
+	public View getView() {
+		return view;
+	}
+
+	/**
+	 * Method to queue a newly connected cohort until it can be admitted
+	 * @param cohort the connection to the new cohort
+	 **/
+	public void requestJoin(CohortConnection cohort) {
+		joining.add(cohort);
+	}
+
+	/**
+	 * Method to take the next cohort waiting to join
+	 * @return the connection to the cohort, null if none are waiting
+	 **/
+	public CohortConnection pollJoining() {
+		return joining.poll();
+	}
+
+	/**
+	 * Method to add a cohort, making a new view
+	 * @param cohort the cohort to add
+	 * @return the new view
+	 **/
+	public synchronized View add(CohortConnection cohort) {
+		CohortConnection[] cohorts = Arrays.copyOf(view.cohorts, view.cohorts.length + 1);
+		cohorts[cohorts.length - 1] = cohort;
+		return publish(cohorts);
+	}
+
+	/**
+	 * Method to remove a cohort, making a new view. Does nothing if the cohort
+	 * isn't in the current view
+	 * @param cohort the cohort to remove
+	 * @return the new (or unchanged) view
+	 **/
+	public synchronized View remove(CohortConnection cohort) {
+		List<CohortConnection> cohorts = new ArrayList<CohortConnection>(Arrays.asList(view.cohorts));
+		if (!cohorts.remove(cohort)) {
+			return view;
+		}
+		return publish(cohorts.toArray(new CohortConnection[cohorts.size()]));
+	}
+
+	/**
+	 * Method to take every cohort out of the membership, including those
+	 * waiting to join, eg: when shutting down
+	 * @return every cohort that was a member or waiting to join
+	 **/
+	public synchronized List<CohortConnection> clear() {
+		List<CohortConnection> all = new ArrayList<CohortConnection>(Arrays.asList(view.cohorts));
+		CohortConnection cohort;
+		while ((cohort = joining.poll()) != null) {
+			all.add(cohort);
+		}
+		publish(new CohortConnection[0]);
+		return all;
+	}
+
+	/**
+	 * Helper to make the next view current. Caller must hold this object's lock
+	 **/
+	private View publish(CohortConnection[] cohorts) {
+		view = new View(view.version + 1, cohorts);
+		NodeMetrics.get().recordMembership(view.version, cohorts.length);
+		return view;
+	}
+}
@@ -1,8 +1,6 @@
 import dcs.os.Server;
 import dcs.os.StockList;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -14,8 +12,18 @@ import java.net.SocketTimeoutException;
  * server implementation
  **/
 public class CohortServer extends Server {
-	private Socket socket; //the socket for this cohort
+	private static final Log log = Log.forNode("cohort");
+	private static final boolean piggyback = Boolean.getBoolean("tpc.piggyback"); //see StockMessage
+	private static final int piggybackIdleMillis = Integer.getInteger("tpc.piggyback.idle", 10);
+	private static final long snapshotInterval = Long.getLong("tpc.snapshot.interval", 0); //seconds, 0 for no snapshots
+	private static final int snapshotRetain = Integer.getInteger("tpc.snapshot.retain", 2);
+
+	private CohortConnection coordinator; //the connection from this cohort to the coordinator
 	private boolean dbLocked; //a lock on its database or not
+	private NodeMetrics metrics; //instrumentation for this node
+	private StockMessage pendingQuery; //a QUERY that arrived carrying the COMMIT for our last transaction
+	private boolean ackFinalPending; //our last ACK_FINAL is waiting to ride on our next vote
+	private SnapshotManager snapshots; //background snapshots of our stock
 
 	/**
 	 * Constructor takes in a path to the database file, calls Server constructor
@@ -26,6 +34,28 @@ public class CohortServer extends Server {
 		//Call super class constructor (Server) and then unlock database file
 		super(databasePath);
 		dbLocked = false;
+		metrics = NodeMetrics.get();
+		snapshots = new SnapshotManager(databasePath, snapshotRetain, null, log);
+		restoreFromSnapshot();
+		if (snapshotInterval > 0) {
+			snapshots.start(snapshotInterval);
+		}
+	}
+
+	/**
+	 * Method to restore our database from the newest snapshot if it has gone
+	 * missing. Anything we missed since will come from the coordinator when
+	 * we join (see catchUp(...))
+	 **/
+	private void restoreFromSnapshot() throws IOException {
+		if (databaseExists()) {
+			return;
+		}
+		SnapshotManager.Snapshot newest = snapshots.loadNewest();
+		if (newest != null) {
+			log.warn("<Database is missing, restoring it from the snapshot of transaction {}>", newest.transactionId);
+			writeDatabase(newest.stock, newest.transactionId);
+		}
 	}
 
 	/**
@@ -53,7 +83,7 @@ public class CohortServer extends Server {
 		while (!connected &&  !timedOut) {
 			try {
 				/* Create a socket connecting to the coordinator's address and port */
-				socket = new Socket(servers[0].getAddress(), servers[0].getPort());
+				coordinator = new CohortConnection(new Socket(servers[0].getAddress(), servers[0].getPort()), "coordinator");
 
 				/* If no exception has been thrown above then we are now connected */
 				connected = true;
@@ -63,12 +93,10 @@ public class CohortServer extends Server {
 				 * then try again */
 				try {
 					Thread.sleep(1000);
-					System.err.println("<cohort> <This is NOT usually a problem, but there was a ConnectException creating socket at " + servers[0].toString() + ". Trying again>");
-					//ce.printStackTrace();
+					log.warn("<This is NOT usually a problem, but there was a ConnectException creating socket at {}. Trying again>", servers[0]);
 				} catch (InterruptedException ie) {
 					/* Has to be caught in order to sleep this thread */
-					System.err.println("<cohort> <InterruptedException thrown creating socket at " + servers[0].toString() + ". Trying again>");
-					//ie.printStackTrace();
+					log.warn("<InterruptedException thrown creating socket at {}. Trying again>", servers[0]);
 				}
 			} finally {
 				/* If 25000ms have passed since we first entered this method, then timeout */
@@ -80,13 +108,14 @@ public class CohortServer extends Server {
 
 		if (!connected) {
 			/* Equivalent to us having timed out above, kill this node */
-			System.err.println("<cohort> <Timed out while connecting to Coordinator which is probably unreachable, this cohort node will now be killed>");
+			log.error("<Timed out while connecting to Coordinator which is probably unreachable, this cohort node will now be killed>");
+			Log.flush();
 			close();
 			System.exit(1);
 
 		} else {
 			/* Connection was made successfully */
-			System.out.println("<cohort> <Successfully connected to Coordinator>");
+			log.info("<Successfully connected to Coordinator>");
 		}
 	}
 
@@ -96,8 +125,9 @@ public class CohortServer extends Server {
 	@Override
 	public void close() throws IOException {
 		//Call Server's close method, then close our own socket and unlock resources
+		snapshots.close();
 		super.close();
-		socket.close();
+		coordinator.close();
 		dbLocked = false;
 	}
 
@@ -111,6 +141,116 @@ public class CohortServer extends Server {
 		throw new UnsupportedOperationException("Cohort nodes do not connect to or handle requests from clients. The handleClientRequest(...) functionality is implemented by CoordinatorServer.");
 	}
 
+	/**
+	 * Method to read this node's database, timing how long it takes
+	 * @return the stock in this node's database
+	 **/
+	@Override
+	public StockList queryDatabase() throws IOException {
+		long start = System.nanoTime();
+		TraceEvents.Database event = new TraceEvents.Database();
+		event.begin();
+		try {
+			return super.queryDatabase();
+		} finally {
+			//not the metrics field, the Server constructor may read the database before it is set
+			NodeMetrics.get().recordDatabaseRead(start);
+			event.operation = "read";
+			event.finish();
+		}
+	}
+
+	/**
+	 * Method to write this node's database, timing how long it takes
+	 * @param stock the stock to write to the database
+	 **/
+	@Override
+	public void writeDatabase(StockList stock) throws IOException {
+		long start = System.nanoTime();
+		TraceEvents.Database event = new TraceEvents.Database();
+		event.begin();
+		try {
+			super.writeDatabase(stock);
+		} finally {
+			NodeMetrics.get().recordDatabaseWrite(start);
+			event.operation = "write";
+			event.finish();
+		}
+	}
+
+	/**
+	 * Method to write this node's database for a transaction, noting what was
+	 * written for the next snapshot
+	 * @param stock the stock to write to the database
+	 * @param transactionId the transaction the stock is as of
+	 **/
+	private void writeDatabase(StockList stock, long transactionId) throws IOException {
+		writeDatabase(stock);
+		snapshots.applied(transactionId, stock);
+	}
+
+	/**
+	 * Method to wait for the next QUERY from the coordinator. In the piggyback
+	 * protocol the QUERY may already have arrived (carrying our last COMMIT),
+	 * and if our last ACK_FINAL is still waiting for a vote to ride on then we
+	 * only wait an idle period before sending it on its own.
+	 * @return the next message from the coordinator, usually a QUERY
+	 **/
+	private StockMessage waitForQuery() throws IOException, ClassNotFoundException {
+		if (pendingQuery != null) {
+			StockMessage query = pendingQuery;
+			pendingQuery = null;
+			return query;
+		}
+		while (true) {
+			coordinator.setTimeout(ackFinalPending ? piggybackIdleMillis : 0);
+			StockMessage received;
+			try {
+				received = coordinator.receive();
+			} catch (SocketTimeoutException e) {
+				/* Nothing to ride on, flush the lone ACK_FINAL and go back to waiting forever */
+				coordinator.send(EncodedMessage.of(Message.ACK_FINAL));
+				ackFinalPending = false;
+				continue;
+			}
+
+			if (piggyback && (received.getMessage() == Message.COMMIT || received.getMessage() == Message.ABORT)) {
+				/* A decision for a transaction we already finished on timeout, nothing left to do */
+				log.warn("<Ignoring late {} for a transaction that has already finished>", received);
+				continue;
+			}
+			return received;
+		}
+	}
+
+	/**
+	 * Method to take our pending ACK_FINAL (if any) so it can ride on a vote
+	 * @return Message.ACK_FINAL if one was pending, null else
+	 **/
+	private Message takeAckFinal() {
+		if (!ackFinalPending) {
+			return null;
+		}
+		ackFinalPending = false;
+		return Message.ACK_FINAL;
+	}
+
+	/**
+	 * Method to catch up with the coordinator when joining: our database is
+	 * replaced with the coordinator's stock, which is what every member has
+	 * between transactions
+	 * @param stock the stock in the coordinator's database
+	 * @param transactionId the last transaction the coordinator's stock includes
+	 * @return true once we have caught up
+	 **/
+	private boolean catchUp(StockList stock, long transactionId) throws IOException {
+		log.info("<Catching up with the coordinator's stock before joining>");
+		writeDatabase(stock, transactionId);
+		coordinator.send(EncodedMessage.of(Message.ACK_SYNC, takeAckFinal()));
+		TraceEvents.vote(coordinator.getName(), Message.ACK_SYNC);
+		return true;
+	}
+
 	/**
 	 * Method to handle a request from this cohort's supervisor!
 	 * @return true if the request succeeded or false if it failed.
@@ -118,9 +258,6 @@ public class CohortServer extends Server {
 	public boolean handleCoordinatorRequest() throws IOException, ClassNotFoundException {
 
 		try { //finally set dbLocked = false
-			socket.setSoTimeout(0);
-			ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
-			ObjectInputStream is = new ObjectInputStream(socket.getInputStream());
 
 			/* ============== FIRST PHASE ============== */
 			/* We are at the QUERY stage. Checking if we can commit or not *
@@ -128,40 +265,61 @@ public class CohortServer extends Server {
 
 			/* Wait for QUERY to begin, we don't timeout on this because we don't know
 			 * when we'll get the *next* client's request. Instead, we can wait here */
-			StockMessage stockMessage = (StockMessage)is.readObject();
+			StockMessage stockMessage = waitForQuery();
+			long phaseStart = System.nanoTime();
+			final long transactionId = stockMessage.getTransactionId();
+			TraceEvents.setTransaction(transactionId);
+			if (stockMessage.getMessage() == Message.SYNC) {
+				/* We are joining, catch up before we take part in any transaction */
+				return catchUp(stockMessage.getStock(), transactionId);
+			}
+			TraceEvents.Phase phaseEvent = TraceEvents.startPhase(Message.QUERY);
 
 			/* Query has begun, we want a timeout now */
-			socket.setSoTimeout(15000);
+			coordinator.setTimeout(15000);
 
 			/* First check that correct message has arrived. If we have been asked to
 			 * do something other than QUERY then a serious error has occured */
 			if (stockMessage.getMessage() != Message.QUERY) {
-				System.err.println("<cohort> <Invalid message type '" + stockMessage.getMessage() + "' received when only QUERY is allowed at this phase>");
-				os.writeObject(new StockMessage(Message.UNABLE));
+				log.error("<Invalid message type '{}' received when only QUERY is allowed at this phase>", stockMessage.getMessage());
+				coordinator.send(EncodedMessage.of(Message.UNABLE, takeAckFinal()));
+				metrics.recordOutcome(Message.UNABLE, "expected QUERY");
 				return false;
 			}
 
 			/* Check if the database file exists before querying */
 			if (!databaseExists()) {
-				System.err.println("<cohort> <Database does not exist>");
-				os.writeObject(new StockMessage(Message.UNABLE));
+				log.error("<Database does not exist>");
+				coordinator.send(EncodedMessage.of(Message.UNABLE, takeAckFinal()));
+				metrics.recordOutcome(Message.UNABLE, "no database");
 				return false;
 			}
 
 			/* Database exists so we are fine to continue. Get stock in database and
 			 * the amount being requested.*/
+			TraceEvents.Lock lockEvent = new TraceEvents.Lock();
+			lockEvent.begin();
 			dbLocked = true;
+			metrics.recordLockWait(phaseStart);
+			lockEvent.acquired = true;
+			lockEvent.finish();
 			StockList stockRequested = stockMessage.getStock();
 			StockList myStock = queryDatabase();
 
 			/* If not enough stock then we send UNABLE (to commit), else we are READY */
+			Message vote;
 			if (!myStock.enough(stockRequested)) {
-				System.out.println("<cohort>> <Not enough stock, sending UNABLE status to coordinator>");
-				os.writeObject(new StockMessage(Message.UNABLE));
+				log.info("<Not enough stock, sending UNABLE status to coordinator>");
+				vote = Message.UNABLE;
+				metrics.recordOutcome(Message.UNABLE, "not enough stock");
 			} else {
-				System.out.println("<cohort> <Enough stock available, sending READY status to coodinator>");
-				os.writeObject(new StockMessage(Message.READY));
+				log.info("<Enough stock available, sending READY status to coodinator>");
+				vote = Message.READY;
 			}
+			coordinator.send(EncodedMessage.of(vote, takeAckFinal()));
+			TraceEvents.vote(coordinator.getName(), vote);
+			metrics.recordPhase(NodeMetrics.Phase.QUERY, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, vote);
 
 
 			/* ============== SECOND PHASE ============== */
@@ -169,12 +327,16 @@ public class CohortServer extends Server {
 			 * Return READY if we can commit, UNABLE else. */
 
 			try {
-				 stockMessage = (StockMessage)is.readObject();
+				 stockMessage = coordinator.receive();
 
 			} catch (SocketTimeoutException e) {
-				System.err.println("<cohort> <Timed out waiting for whether to PRE_COMMIT or ABORT - forced to assume ABORT");
+				log.warn("<Timed out waiting for whether to PRE_COMMIT or ABORT - forced to assume ABORT>");
+				metrics.recordOutcome(Message.ABORT, "timed out waiting for PRE_COMMIT");
+				TraceEvents.timeout(0, coordinator.getName(), "PRE_COMMIT or ABORT");
 				return false;
 			}
+			phaseStart = System.nanoTime();
+			phaseEvent = TraceEvents.startPhase(stockMessage.getMessage());
 
 			/* If we get here then no timeout occured and we have a message telling us
 			 * either to PRE_COMMIT or to ABORT */
@@ -182,22 +344,26 @@ public class CohortServer extends Server {
 			Message msgForCoord;
 			if (stockMessage.getMessage() == Message.PRE_COMMIT) {
 				msgForCoord = Message.ACK_PRE_COMMIT;
-				System.out.println("<cohort> <Instructed to PRE_COMMIT>");
+				log.info("<Instructed to PRE_COMMIT>");
 
 			} else if (stockMessage.getMessage() == Message.ABORT) {
-				System.out.println("<cohort> <Instructed to ABORT>");
+				log.info("<Instructed to ABORT>");
 				msgForCoord = Message.ACK_ABORT;
 
 			} else {
-				System.err.println("<cohort> <Unexpected message of " + stockMessage.getMessage() + " received when expected only PRE_COMMIT or ABORT here, assuming ABORT>");
+				log.error("<Unexpected message of {} received when expected only PRE_COMMIT or ABORT here, assuming ABORT>", stockMessage.getMessage());
 				msgForCoord = Message.ACK_ABORT;
 			}
 
 			//We write back our acknowledgement
 
-			os.writeObject(new StockMessage(msgForCoord));
+			coordinator.send(EncodedMessage.of(msgForCoord));
+			TraceEvents.vote(coordinator.getName(), msgForCoord);
+			metrics.recordPhase(NodeMetrics.Phase.PRE_COMMIT, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, msgForCoord);
 			if (msgForCoord == Message.ACK_ABORT) {
-				System.err.println("<cohort> <ABORT acknowledged, the transaction will not occur>");
+				log.warn("<ABORT acknowledged, the transaction will not occur>");
+				metrics.recordOutcome(Message.ABORT, stockMessage.getMessage() == Message.ABORT ? "instructed to ABORT" : "unexpected message instead of PRE_COMMIT");
 				return false;
 			}
 
@@ -208,31 +374,56 @@ public class CohortServer extends Server {
 			 * a cohort goes down */
 
 			Message response;
+			String reason = "instructed to";
 			try {
-				response = ((StockMessage)is.readObject()).getMessage();
+				StockMessage decision = coordinator.receive();
+				response = decision.getMessage();
+				if (piggyback && response == Message.QUERY) {
+					/* The next transaction has begun and our COMMIT decision rode in on
+					 * its QUERY. We apply the decision now and vote on the QUERY next time
+					 * round. The coordinator only moves on after a COMMIT, so no
+					 * piggyback still means COMMIT */
+					pendingQuery = decision;
+					response = Message.COMMIT;
+					reason = "piggybacked";
+				}
 			} catch (SocketTimeoutException e) {
 				/* Timed out waiting for COMMIT/ABORT */
-				System.out.println("<cohort> <Timed out waiting for COMMIT but this node has already PRE_COMMITted so will now DO this COMMIT>");
+				log.warn("<Timed out waiting for COMMIT but this node has already PRE_COMMITted so will now DO this COMMIT>");
+				TraceEvents.timeout(0, coordinator.getName(), "COMMIT or ABORT");
 				//DO COMMIT
 				response = Message.COMMIT;
+				reason = "timed out after PRE_COMMIT so";
 			}
+			phaseStart = System.nanoTime();
+			phaseEvent = TraceEvents.startPhase(response);
 			boolean succeeded = true;
 			if (response == Message.ABORT) {
-				System.out.println("<cohort> <Doing ABORT>");
+				log.info("<Doing ABORT>");
+				metrics.recordOutcome(Message.ABORT, reason + " ABORT");
 				succeeded = false;
 
 			} else if (response == Message.COMMIT) {
 				//DO COMMIT
-				System.out.println("<cohort> <Received COMMIT, now committing changes to this database>");
+				log.info("<Received COMMIT, now committing changes to this database>");
 				myStock.remove(stockRequested);
-				writeDatabase(myStock);
+				writeDatabase(myStock, transactionId);
+				metrics.recordOutcome(Message.COMMIT, reason + " COMMIT");
 
 			} else {
-				System.err.println("<cohort> <Unexpected message of " + stockMessage.getMessage() + " received when expected only COMMIT or ABORT here, assuming ABORT>");
+				log.error("<Unexpected message of {} received when expected only COMMIT or ABORT here, assuming ABORT>", stockMessage.getMessage());
+				metrics.recordOutcome(Message.ABORT, "unexpected message instead of COMMIT");
 				succeeded = false;
 			}
 
-			os.writeObject(new StockMessage(Message.ACK_FINAL));
+			if (piggyback) {
+				/* The coordinator doesn't wait for this, it can ride on our next vote */
+				ackFinalPending = true;
+			} else {
+				coordinator.send(EncodedMessage.of(Message.ACK_FINAL));
+			}
+			metrics.recordPhase(NodeMetrics.Phase.FINAL, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, succeeded ? Message.COMMIT : Message.ABORT);
 
 			return succeeded;
 
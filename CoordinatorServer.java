@@ -1,19 +1,24 @@
 import dcs.os.Server;
 import dcs.os.StockList;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Iterator;
+import java.util.Map;
 
 
 /**
@@ -22,24 +27,116 @@ import java.util.Iterator;
  * server implementation
  **/
 public class CoordinatorServer extends Server {
-	private boolean dbLocked; //resource lock  - true <=> database is locked
+	private static final Log log = Log.forNode("coordinator");
+	private static final boolean piggyback = Boolean.getBoolean("tpc.piggyback"); //see StockMessage
+	private static final long piggybackIdleMillis = Long.getLong("tpc.piggyback.idle", 10);
+	private static final boolean earlyAck = Boolean.getBoolean("tpc.earlyAck"); //reply to the client once COMMIT is certain
+	private static final long snapshotInterval = Long.getLong("tpc.snapshot.interval", 0); //seconds, 0 for no snapshots
+	private static final int snapshotRetain = Integer.getInteger("tpc.snapshot.retain", 2);
+	private static final boolean scheduled = Boolean.getBoolean("tpc.scheduler"); //queue client requests, see TransactionScheduler
+	private static final int readQuorum = Integer.getInteger("tpc.quorum.read", 0); //READY votes needed to PRE_COMMIT, 0 for every cohort
+	private static final int writeQuorum = Integer.getInteger("tpc.quorum.write", readQuorum); //ACK_PRE_COMMITs needed to COMMIT
+	private static final boolean quorum = readQuorum > 0;
+	private static final long repairWaitMillis = Long.getLong("tpc.quorum.repairWait", 1000); //how long to wait for stale cohorts when short of a quorum
+	private static final int WRITE_ATTEMPTS = 5; //tries at writing a logged COMMIT to our database before we give up and stop
+
+	private volatile boolean dbLocked; //resource lock  - true <=> database is locked, may be released by the committer thread
+	private final Object lockCheck = new Object(); //makes checking and taking dbLocked one step, never held while waiting
 	private ServerSocket serverSocket; //to create sockets from
-	private Socket[] sockets; //connection to cohorts
+	private int initialCohorts; //how many cohorts acceptServers(...) waits for
+	private CohortMembership membership; //connections to cohorts, more may join or leave as we run
+	private NodeMetrics metrics; //instrumentation for this node
+	private final Object decisionLock = new Object(); //guards the two fields below
+	private boolean commitPending; //a COMMIT decision is waiting to ride on the next QUERY
+	private long commitGeneration; //bumped for every deferred COMMIT, so stale idle flushes do nothing
+	private ScheduledExecutorService idleFlusher; //sends deferred COMMITs alone if no QUERY comes along
+	private ExecutorService pool; //runs the socket handlers, shared by every transaction
+	private TransactionIds transactionIds; //hands out transaction ids, never reused even after a crash
+	private DecisionLog decisions; //durable COMMIT decisions, only used with earlyAck
+	private ExecutorService committer; //finishes early acknowledged COMMITs in the background
+	private volatile Future<?> backgroundCommit; //the COMMIT the committer is finishing, null if none yet
+	private SnapshotManager snapshots; //background snapshots of our stock
+	private TransactionScheduler scheduler; //decides which client request goes next, null if not scheduled
+	private ExecutorService repairer; //brings stale cohorts back in quorum mode
+	private final Map<CohortConnection, Long> caughtUp = new ConcurrentHashMap<CohortConnection, Long>(); //repaired cohorts waiting to rejoin, and the transaction their stock is as of
+	private final Object repairs = new Object(); //guards the two fields below
+	private int repairing; //stale cohorts still being repaired
+	private long repaired; //bumped every time a repair finishes
+	private final Object databaseWrites = new Object(); //guards appliedTransaction, so our stock and the transaction it is as of can be read together
+	private long appliedTransaction; //the last transaction written to our database
 
 	/**
 	 * Constructor to create a coordinator
 	 * @param databasePath a path to the database file
-	 * @param numOtherServers the number of other servers (cohorts)
+	 * @param numOtherServers the number of other servers (cohorts) to start with
 	 **/
 	public CoordinatorServer(String databasePath, int numOtherServers) throws IOException {
-		/* Call super constructor and then create a socket for each cohort, don't lock databases yet */
+		/* Call super constructor and then create a connection for each cohort, don't lock databases yet */
 		super(databasePath);
-		sockets = new Socket[numOtherServers];
+		initialCohorts = numOtherServers;
+		membership = new CohortMembership();
 		dbLocked = false;
+		metrics = NodeMetrics.get();
+		pool = Executors.newFixedThreadPool(16);
+		if (earlyAck) {
+			decisions = new DecisionLog(new File(databasePath + ".decisions"));
+		}
+		snapshots = new SnapshotManager(databasePath, snapshotRetain, decisions, log);
+		long snapshotTransaction = restoreFromSnapshot();
+		long lastTransaction = snapshotTransaction;
+		if (earlyAck) {
+			lastTransaction = Math.max(lastTransaction, decisions.getLastTransactionId());
+			recoverInDoubtDecisions(snapshotTransaction);
+			committer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "background-commit");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		/* Carry on numbering transactions from where we left off, see TransactionIds. The
+		 * snapshot and decision log only matter if no ids have been reserved yet */
+		transactionIds = new TransactionIds(new File(databasePath + ".txids"), lastTransaction);
+		if (snapshotInterval > 0) {
+			snapshots.start(snapshotInterval);
+		}
+		if (quorum) {
+			repairer = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "cohort-repair");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (scheduled) {
+			scheduler = new TransactionScheduler(new TransactionScheduler.Engine() {
+				public StockList inventory() throws IOException {
+					awaitBackgroundCommit(); //an early acknowledged COMMIT hasn't reached our database yet
+					return queryDatabase();
+				}
+
+				public boolean execute(StockList stock) throws IOException {
+					return runTransaction(stock);
+				}
+			}, Integer.getInteger("tpc.scheduler.maxBypass", 4), Integer.getInteger("tpc.scheduler.queue", 64));
+		}
+		if (piggyback) {
+			idleFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "piggyback-flush");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 	}
 
 	/**
-	 * A method to listen and accept server connections
+	 * A method to listen and accept server connections. Returns once the
+	 * initial cohorts have connected, then carries on accepting cohorts in the
+	 * background; they join between transactions
 	 * @param port the port to listen on
 	 **/
 	@Override
@@ -47,43 +144,237 @@ public class CoordinatorServer extends Server {
 		/* Listen on this port for cohorts */
 		serverSocket = new ServerSocket(port);
 
-		System.out.println("<coordinator> <Now accepting cohorts>");
+		log.info("<Now accepting cohorts>");
+
+		for (int i = 0; i < initialCohorts; i++) {
+			/* Create a connection for each cohort, its streams last for every transaction.
+			 * Nothing has happened yet so there is no catching up to do */
+			CohortConnection cohort = new CohortConnection(serverSocket.accept(), "cohort");
+			CohortMembership.View view = membership.add(cohort);
+			log.info("<successfully connected to {}, membership is now {}>", cohort, view);
+		}
+
+		/* Accept cohorts that join after startup */
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptJoiningCohorts();
+			}
+		}, "cohort-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Method run on the acceptor thread to accept cohorts that connect after
+	 * startup, until the server socket is closed. They wait in the membership's
+	 * joining queue until the next transaction admits them
+	 **/
+	private void acceptJoiningCohorts() {
+		while (!serverSocket.isClosed()) {
+			try {
+				CohortConnection cohort = new CohortConnection(serverSocket.accept(), "cohort");
+				log.info("<{} connected, it will join before the next transaction>", cohort);
+				membership.requestJoin(cohort);
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					log.error("<Could not accept a joining cohort>", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to bring the membership up to date between transactions. Cohorts
+	 * whose connection failed or timed out are removed. Cohorts waiting to join
+	 * are sent our stock (SYNC) to catch up with, and are added once they
+	 * acknowledge it; stale cohorts were already caught up in the background,
+	 * see catchUp(...). Must only be called while we hold the database lock,
+	 * so no transaction is in progress and our stock is what every member has
+	 * @param myStock the stock in our database
+	 * @param transactionId the transaction about to start
+	 **/
+	private void updateMembership(StockList myStock, long transactionId) throws IOException {
+		for (CohortConnection cohort : membership.getView().getCohorts()) {
+			if (cohort.isFailed()) {
+				CohortMembership.View view = membership.remove(cohort);
+				log.warn("<Removed {} because its connection failed or timed out, membership is now {}>", cohort, view);
+				cohort.close();
+			}
+		}
 
-		for (int i = 0; i < sockets.length; i++) {
-			/* Create a socket for each cohort */
-			sockets[i] = serverSocket.accept();
-			System.out.println("<coordinator> <successfully connected to cohort on socket[" + i + "]");
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(repairWaitMillis);
+		while (true) {
+			long repairsSeen = getRepaired();
+			admitJoining(myStock, transactionId);
+			if (!quorum || membership.getView().size() >= readQuorum || !awaitRepair(repairsSeen, deadline)) {
+				return;
+			}
+			/* We'd have to abort for want of a quorum, but a stale cohort has
+			 * just been repaired and may be able to rejoin now */
 		}
 	}
 
 	/**
-	 * Method to perform preliminary checks on the server. Locks database where needed
-	 * @return true if the database provided actually exists, is not locked, has
+	 * Method to add the cohorts waiting to join, see updateMembership(...)
+	 * @param myStock the stock in our database
+	 * @param transactionId the transaction about to start
+	 **/
+	private void admitJoining(StockList myStock, long transactionId) throws IOException {
+		ArrayList<CoordinatorSocketHandler> syncs = new ArrayList<CoordinatorSocketHandler>();
+		EncodedMessage sync = null;
+		boolean flushed = false;
+		CohortConnection joining;
+		while ((joining = membership.pollJoining()) != null) {
+			if (piggyback && !flushed) {
+				/* A joiner must not be sent a deferred COMMIT from before it joined,
+				 * so send any that is pending to the current members now */
+				flushPendingCommit(-1);
+				flushed = true;
+			}
+			Long syncedTo = caughtUp.remove(joining);
+			if (syncedTo == null) {
+				/* Newly connected. Our stock includes every transaction before this one, tag it with the last of those */
+				if (sync == null) {
+					sync = EncodedMessage.encode(new StockMessage(transactionId - 1, myStock, Message.SYNC, null));
+				}
+				syncs.add(new CoordinatorSocketHandler(joining, sync));
+			} else if (joining.isFailed()) {
+				log.warn("<Dropping repaired {}, its connection failed>", joining);
+				joining.close();
+			} else if (syncedTo == getAppliedTransaction()) {
+				CohortMembership.View view = membership.add(joining);
+				log.info("<Repaired {} has rejoined, membership is now {}>", joining, view);
+			} else {
+				/* Something was committed since it caught up, it has to catch up again */
+				catchUpInBackground(joining);
+			}
+		}
+		if (syncs.isEmpty()) {
+			return;
+		}
+
+		/* Catch every joiner up at once, rather than one round trip after another */
+		List<Future<Message>> replies;
+		try {
+			replies = pool.invokeAll(syncs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted catching up joining cohorts", e);
+		}
+		for (int i = 0; i < syncs.size(); i++) {
+			joining = syncs.get(i).getConnection();
+			Message reply;
+			try {
+				reply = replies.get(i).get();
+			} catch (ExecutionException e) {
+				reply = null; //it sent us something that isn't a StockMessage
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				reply = null;
+			}
+			if (reply == Message.ACK_SYNC) {
+				CohortMembership.View view = membership.add(joining);
+				log.info("<{} has caught up and joined, membership is now {}>", joining, view);
+			} else {
+				log.error("<{} could not catch up (replied {}), dropping it>", joining, reply);
+				joining.close();
+			}
+		}
+	}
+
+	/**
+	 * Method to check that the quorum settings make sense for the number of
+	 * cohorts the coordinator starts with
+	 * @param numOtherServers the number of cohorts to start with
+	 * @return what is wrong with the settings, null if nothing
+	 **/
+	public static String checkQuorum(int numOtherServers) {
+		if (readQuorum < 0) {
+			return "tpc.quorum.read must not be negative";
+		}
+		if (!quorum) {
+			return System.getProperty("tpc.quorum.write") == null ? null : "tpc.quorum.write needs tpc.quorum.read to be set too";
+		}
+		if (writeQuorum < 1 || writeQuorum > readQuorum || readQuorum > numOtherServers) {
+			return "Quorums must satisfy 1 <= tpc.quorum.write <= tpc.quorum.read <= number of cohorts, not write "
+					+ writeQuorum + ", read " + readQuorum + " with " + numOtherServers + " cohorts";
+		}
+		return null;
+	}
+
+	/**
+	 * Method to lock the database for a transaction and give the transaction
+	 * its id. Ids are handed out under the lock so they are in the order
+	 * transactions reach our database, which replaying the decision log relies on
+	 * @return the id of the transaction that now holds the lock, 0 if another transaction holds it
+	 **/
+	private long lockDatabase() {
+		long lockStart = System.nanoTime();
+		TraceEvents.Lock lockEvent = new TraceEvents.Lock();
+		lockEvent.begin();
+		/* An early acknowledged COMMIT may still be finishing, it holds the lock until it's done.
+		 * Wait without holding any monitor: the committer reads and writes the database,
+		 * which may synchronize on this server */
+		awaitBackgroundCommit();
+
+		synchronized (lockCheck) {
+			if (dbLocked) {
+				/* Resources are locked so another client must be doing something, abort */
+				log.error("<Database is locked, this means a communication is already happening with another client, perhaps try again later>");
+				metrics.recordLockContended();
+				metrics.recordOutcome(Message.UNABLE, "database locked");
+				TraceEvents.setTransaction(0); //turned away before it got an id
+				lockEvent.finish();
+				return 0;
+			}
+
+			//Lock the resources now
+			dbLocked = true;
+		}
+		long transactionId;
+		try {
+			transactionId = transactionIds.next();
+		} catch (IOException e) {
+			log.error("<Could not reserve transaction ids>", e);
+			metrics.recordOutcome(Message.UNABLE, "could not reserve transaction ids");
+			dbLocked = false;
+			TraceEvents.setTransaction(0);
+			lockEvent.finish();
+			return 0;
+		}
+		TraceEvents.setTransaction(transactionId);
+		metrics.recordLockWait(lockStart);
+		lockEvent.acquired = true;
+		lockEvent.finish();
+		return transactionId;
+	}
+
+	/**
+	 * Method to perform preliminary checks on the server. Caller must hold the database lock
+	 * @return true if the database provided actually exists and has
 	 * enough stock to service the query. Else returns false.
 	 * @param stock the stocklist being requested
+	 * @param transactionId the transaction about to start
 	 **/
-	private boolean prelimChecks(StockList stock) throws IOException {
+	private boolean prelimChecks(StockList stock, long transactionId) throws IOException {
 		if (!databaseExists()) {
 			/* Coordinator doesn't have a database! Unlikely to ever occur but abort now */
-			System.err.println("<coordinator> {err} <No database file!>");
-			return false;
-		}
-
-		if (dbLocked) {
-			/* Resources are locked so another client must be doing something, abort */
-			System.err.println("<coordinator> {err} <Database is locked, this means a communication is already happening with another client, perhaps try again later>");
+			log.error("<No database file!>");
+			metrics.recordOutcome(Message.UNABLE, "no database at coordinator");
 			return false;
 		}
 
 		//Get stock in database
 		StockList myStock = queryDatabase();
-		//Lock the resources now
-		dbLocked = true;
+
+		/* No transaction is running, so now is when cohorts can join or leave */
+		updateMembership(myStock, transactionId);
 
 		if (!myStock.enough(stock)) {
 			/* If coordinator doesn't have enough stock, there's no point even talking
 			 * to the cohorts, we'll need to abort regardless */
-			System.out.println("<coordinator> <NOT enough stock in coordinator's database, aborting transaction without communicating to cohorts>");
+			log.info("<NOT enough stock in coordinator's database, aborting transaction without communicating to cohorts>");
+			metrics.recordOutcome(Message.UNABLE, "not enough stock at coordinator");
 			return false;
 		}
 
@@ -93,10 +384,11 @@ public class CoordinatorServer extends Server {
 
 	/**
 	 * Method to perform the first phase of the 3PC protocol
-	 * @param handlers An array list of the socket handlers for coordinator
+	 * @param handlers An array list of the socket handlers for coordinator. Any
+	 * whose cohort left before voting are removed, see CoordinatorSocketHandler.hasLeft()
 	 * @param pool the executor service to thread this application
-	 * @return Message.ABORT if response unable from any cohort, else it will
-	 * return Message.PRE_COMMIT.
+	 * @return Message.ABORT if response unable from any cohort (or every cohort
+	 * left), else it will return Message.PRE_COMMIT.
 	 **/
 	private Message firstPhase(ArrayList<CoordinatorSocketHandler> handlers, ExecutorService pool) throws IOException {
 		/* Make the communication with cohorts and await response */
@@ -111,25 +403,37 @@ public class CoordinatorServer extends Server {
 			//We invoke all because we need to know the result from each cohort before making a decision
 			futures = pool.invokeAll(handlers);
 			it = futures.iterator();
-			while (it.hasNext()) {
+			ArrayList<CoordinatorSocketHandler> left = new ArrayList<CoordinatorSocketHandler>();
+			for (int i = 0; it.hasNext(); i++) {
 				/* Look at each cohort response. If even one is UNABLE then we set
 				 * nextPhase to UNABLE. Else it will stay at its initial value of PRE_COMMIT */
 				Message response = it.next().get();
 
-				if (response == Message.UNABLE) {
+				if (handlers.get(i).hasLeft()) {
+					/* Its connection broke before it voted, eg: it left while we were idle.
+					 * It takes no part in this transaction rather than voting it down */
+					log.warn("<{} left before voting, carrying on without it>", handlers.get(i).getConnection());
+					left.add(handlers.get(i));
+
+				} else if (response == Message.UNABLE) {
 					// If any cohort was unable it either lacks stock or died/timed out so we ABORT
 					nextPhase = Message.ABORT;
 
 				} else if (response != Message.READY) {
 					//If any cohort responsed with a message other than UNABLE/READY then something went wrong so we assume UNABLE
-					System.err.println("<coordinator> {err} <Expected either UNABLE or READY from cohort but got " + response + ">");
+					log.error("<Expected either UNABLE or READY from cohort but got {}>", response);
 					nextPhase = Message.ABORT;
 				}
 			}
+			handlers.removeAll(left);
+			if (handlers.isEmpty()) {
+				log.warn("<Every cohort left before voting>");
+				nextPhase = Message.ABORT;
+			}
 		} catch (ExecutionException e) {
-			e.printStackTrace();
+			log.error("<ExecutionException occured in first phase>", e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error("<InterruptedException occured in first phase>", e);
 		}
 
 		//Returning either PRE_COMMIT or ABORT
@@ -160,7 +464,7 @@ public class CoordinatorServer extends Server {
 
 				if (response == Message.ACK_ABORT) {
 					//If cohort did not acknowledge precommit then we must abort everywhere
-					System.out.println("<coordinator> <ABORT requested>");
+					log.info("<ABORT requested>");
 					nextPhase = Message.ACK_ABORT;
 					break;
 
@@ -170,14 +474,14 @@ public class CoordinatorServer extends Server {
 
 				} else {
 					//If cohort got a message other than ACK/DID_NOT_ACK then something serious went wrong and we abort
-					System.err.println("<coordinator> {err} <Expected either ACK_COMMIT or ACK_ABORT from cohort but got " + response + ". Assuming ABORT>");
+					log.error("<Expected either ACK_COMMIT or ACK_ABORT from cohort but got {}. Assuming ABORT>", response);
 					nextPhase = Message.ACK_ABORT;
 				}
 			}
 		} catch (ExecutionException e) {
-			e.printStackTrace();
+			log.error("<ExecutionException occured in second phase>", e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error("<InterruptedException occured in second phase>", e);
 		}
 		return nextPhase;
 	}
@@ -189,9 +493,10 @@ public class CoordinatorServer extends Server {
 	 * @param myStock Stock at this node
 	 * @param stock Stock request
 	 * @param previousPhase the message from the previous phase
+	 * @param transactionId the id of the transaction
 	 * @return true if transaction was a success over all nodes, false else
 	 **/
-	private boolean finalPhase(ArrayList<CoordinatorSocketHandler> handlers, ExecutorService pool, StockList myStock, StockList stock, Message previousPhase) throws IOException {
+	private boolean finalPhase(ArrayList<CoordinatorSocketHandler> handlers, ExecutorService pool, StockList myStock, StockList stock, Message previousPhase, long transactionId) throws IOException {
 		//See firstPhase function for better explanation of variables
 		List<Future<Message>> futures = null;
 		Iterator<Future<Message>> it = null;
@@ -212,28 +517,29 @@ public class CoordinatorServer extends Server {
 					//System.err.println(it.next().get());
 				}
 			} catch (ExecutionException e) {
-				System.err.println("<coordinator> {err} <ExecutionException occured, now printing stack trace");
-				e.printStackTrace();
+				log.error("<ExecutionException occured, now printing stack trace>", e);
 			}
 
 			if (nextPhase == Message.COMMIT) {
 				/* We got the ACK from the cohort that the COMMIT went ahead, finish up by changing our database */
-				System.out.println("<coordinator> <Third phase done: Received ACK that COMMIT was successful on cohorts, now will write changes to my database>");
+				log.info("<Third phase done: Received ACK that COMMIT was successful on cohorts, now will write changes to my database>");
 				myStock = queryDatabase();
 				myStock.remove(stock);
-				writeDatabase(myStock);
+				writeDatabase(myStock, transactionId);
+				metrics.recordOutcome(Message.COMMIT, "all cohorts acknowledged");
 				return true; //request for stock was successful
 
 			} else if (nextPhase == Message.ABORT) {
-				System.out.println("<coordinator> <Final phase ABORT happened, no transaction occured>");
+				log.info("<Final phase ABORT happened, no transaction occured>");
+				metrics.recordOutcome(Message.ABORT, "missing ACK_FINAL");
 
 			} else {
-				System.err.println("<coordinator> {err} <Expected either ACK_FINAL or ABORT from cohort but got " + nextPhase + ". Will assume ABORT>");
+				log.error("<Expected either ACK_FINAL or ABORT from cohort but got {}. Will assume ABORT>", nextPhase);
+				metrics.recordOutcome(Message.ABORT, "unexpected final response");
 			}
 
 		} catch (InterruptedException e) {
-			System.err.println("<coordinator> {err} <InterruptedException occurred. Now printing stack trace>");
-			e.printStackTrace();
+			log.error("<InterruptedException occurred. Now printing stack trace>", e);
 		}
 
 		return false;
@@ -245,92 +551,748 @@ public class CoordinatorServer extends Server {
 	 **/
 	@Override
 	public boolean handleClientRequest(StockList stock) throws IOException {
+		if (scheduler != null) {
+			/* Wait for the scheduler to give us a turn rather than being turned away if busy */
+			return scheduler.submit(stock);
+		}
+		return runTransaction(stock);
+	}
+
+	/** Method to run one client request through 3PC
+	 * @param stock the stock being requested by client
+	 * @return true if the request succeeded or false if it failed.
+	 **/
+	private boolean runTransaction(StockList stock) throws IOException {
 
+		boolean handedOff = false; //true once the committer thread owns the database lock
+		final long transactionId = lockDatabase();
+		if (transactionId == 0) {
+			/* Another transaction is in progress, its lock is not ours to release */
+			return false;
+		}
 		try { //finally unlocks the database
 
-			/* First we handle a few outlier cases (eg: resource is locked, etc) */
-			if (!prelimChecks(stock)) {
+			/* First we handle a few outlier cases (eg: no database, not enough stock) */
+			if (!prelimChecks(stock, transactionId)) {
 				return false;
 			}
 
 			StockList myStock = queryDatabase();
+			/* This transaction talks to the membership as it is now, even if it changes part way through */
+			CohortConnection[] cohorts = membership.getView().getCohorts();
+
+			if (quorum && cohorts.length < readQuorum) {
+				/* Stale cohorts are still being repaired, or too many have left */
+				log.warn("<Only {} cohorts, a read quorum needs {}, aborting transaction without communicating to cohorts>", cohorts.length, readQuorum);
+				metrics.recordOutcome(Message.ABORT, "too few cohorts for a quorum");
+				return false;
+			}
 
-			if (sockets.length == 0 ) {
+			if (cohorts.length == 0 ) {
 				/* Only one server was set up in the runServers.sh script. Ie: there are no cohort */
 				/* We know from above that there is enough stock, so let's do the transaction */
 				myStock.remove(stock);
-				writeDatabase(myStock);
+				if (decisions == null) {
+					writeDatabase(myStock, transactionId);
+				} else {
+					/* Log it like any other COMMIT, so restoring from a snapshot doesn't lose it.
+					 * Once logged it has committed, even if it only reaches our database on restart */
+					decisions.recordCommit(transactionId, myStock);
+					if (!applyDecision(myStock, transactionId)) {
+						handedOff = true; //we are stopping, nothing else may build on our database
+					}
+				}
+				metrics.recordOutcome(Message.COMMIT, "no cohorts");
 				return true;
 			}
 
-			/* Creating streams and threadpools */
-			ObjectOutputStream[] os = new ObjectOutputStream[sockets.length];
-			ObjectInputStream[] is = new ObjectInputStream[sockets.length];
-			ExecutorService pool = Executors.newFixedThreadPool(16);
-			ArrayList<CoordinatorSocketHandler> handlers = new ArrayList<CoordinatorSocketHandler>(sockets.length);
-
-			List<Future<Message>> futures = null;
-			Iterator<Future<Message>> it = null;
-
-			for (int i = 0; i < sockets.length; i++) {
-				/* Initialise streams */
-				os[i] = new ObjectOutputStream(sockets[i].getOutputStream());
-				is[i] = new ObjectInputStream(sockets[i].getInputStream());
-			}
+			/* The threadpool and the streams last across transactions, we just need handlers */
+			final ArrayList<CoordinatorSocketHandler> handlers = new ArrayList<CoordinatorSocketHandler>(cohorts.length);
 
 			/******* FIRST PHASE *******/
 			/***************************/
 
-			/* We make QUERY (to commit) to cohorts */
-			StockMessage stockMessage = new StockMessage(stock, Message.QUERY);
+			/* We make QUERY (to commit) to cohorts. The message (and its stock) is
+			 * serialized once here and the same bytes are written to every cohort */
+			EncodedMessage query;
+			synchronized (decisionLock) {
+				/* Any deferred COMMIT rides on this QUERY. We hold the lock until it is
+				 * encoded so an idle flush can't send the same COMMIT alone as well */
+				query = EncodedMessage.encode(new StockMessage(transactionId, stock, Message.QUERY, takePendingCommit()));
+			}
 
-			for (int i = 0; i < sockets.length; i++) {
+			for (int i = 0; i < cohorts.length; i++) {
 				/* Create our callables that we invoke later */
-				handlers.add(new CoordinatorSocketHandler(sockets[i], stockMessage, os[i], is[i]));
+				handlers.add(new CoordinatorSocketHandler(cohorts[i], query));
 			}
 
 			// We perform the first phase, which returns either PRE_COMMIT or ABORT
-			Message nextPhase = firstPhase(handlers, pool);
-			System.out.println("<coordinator> <First phase complete, cohort voted for " + nextPhase +">");
+			long phaseStart = System.nanoTime();
+			TraceEvents.Phase phaseEvent = TraceEvents.startPhase(Message.QUERY);
+			Message nextPhase;
+			if (quorum) {
+				/* Move on as soon as enough cohorts are READY. Cohorts that aren't by
+				 * then sit this transaction out and are told to ABORT it */
+				Map<CoordinatorSocketHandler, Future<Message>> laggards = new LinkedHashMap<CoordinatorSocketHandler, Future<Message>>();
+				nextPhase = quorumPhase(handlers, Message.READY, readQuorum, laggards) ? Message.PRE_COMMIT : Message.ABORT;
+				repairInBackground(laggards, Message.ABORT, transactionId);
+			} else {
+				nextPhase = firstPhase(handlers, pool);
+			}
+			metrics.recordPhase(NodeMetrics.Phase.QUERY, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, nextPhase);
+			log.info("<First phase complete, cohort voted for {}>", nextPhase);
 
 
 			/******* SECOND PHASE *******/
-			/* We send PRE_COMMIT or ABORT to cohorts */
-
-			for (int i = 0; i < sockets.length; i++) {
-				//Set each handler to a new instance containing the new message
-
-				CoordinatorSocketHandler csh = handlers.get(i);
-				csh.updateMessage(nextPhase);
-				handlers.set(i,csh);
+			/* We send PRE_COMMIT or ABORT to cohorts. Cohorts already have the stock
+			 * from the QUERY so later phases only need the bare message */
+			EncodedMessage phaseMessage = EncodedMessage.of(nextPhase);
+			for (CoordinatorSocketHandler handler : handlers) {
+				//Point each handler at the new (shared) message
+				handler.updateMessage(phaseMessage);
 			}
 
-			nextPhase = secondPhase(handlers, pool);
+			phaseStart = System.nanoTime();
+			phaseEvent = TraceEvents.startPhase(Message.PRE_COMMIT);
+			Message firstPhaseDecision = nextPhase;
+			if (quorum && nextPhase == Message.PRE_COMMIT) {
+				/* COMMIT as soon as enough cohorts have PRE_COMMITted. Cohorts that
+				 * haven't acknowledged by then are told the outcome later */
+				Map<CoordinatorSocketHandler, Future<Message>> laggards = new LinkedHashMap<CoordinatorSocketHandler, Future<Message>>();
+				boolean acknowledged = quorumPhase(handlers, Message.ACK_PRE_COMMIT, writeQuorum, laggards);
+				repairInBackground(laggards, acknowledged ? Message.COMMIT : Message.ABORT, transactionId);
+				if (acknowledged) {
+					nextPhase = Message.COMMIT;
+				} else {
+					abortPreCommitted(handlers);
+					nextPhase = Message.ACK_ABORT;
+				}
+			} else if (handlers.isEmpty()) {
+				/* No cohort was READY in time (quorum mode), or every cohort left, so nobody is left to tell */
+				nextPhase = Message.ACK_ABORT;
+			} else {
+				nextPhase = secondPhase(handlers, pool);
+			}
+			metrics.recordPhase(NodeMetrics.Phase.PRE_COMMIT, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, nextPhase);
 			/* Second phase done, nextPhase enum is either COMMIT or ACK_ABORT */
 
 			if (nextPhase == Message.ACK_ABORT) {
-				System.out.println("<coordinator> <Second phase complete, cohort have sent ACK_ABORT to acknowledge that the ABORT was a success>");
+				log.info("<Second phase complete, cohort have sent ACK_ABORT to acknowledge that the ABORT was a success>");
+				if (quorum) {
+					metrics.recordOutcome(Message.ABORT, firstPhaseDecision == Message.ABORT ? "read quorum not reached" : "write quorum not reached");
+				} else {
+					metrics.recordOutcome(Message.ABORT, firstPhaseDecision == Message.ABORT ? "cohort voted UNABLE" : "cohort did not PRE_COMMIT");
+				}
 				return false;
 			}
 
 			//If we get here, nextPhase is COMMIT
-			System.out.println("<coordinator> <Second phase complete, cohort voted for " + nextPhase +">");
+			log.info("<Second phase complete, cohort voted for {}>", nextPhase);
+
+			if (earlyAck) {
+				/* Every cohort has PRE_COMMITted, so even if we died now they would all
+				 * COMMIT on timeout. Once the decision is on disk we can tell the client
+				 * and leave the third phase and our own database write to the committer
+				 * thread, which releases the database lock when it's done. We hold the
+				 * lock until then, so what our database will end up as is known now */
+				final StockList committed = myStock;
+				committed.remove(stock);
+				decisions.recordCommit(transactionId, committed);
+				metrics.recordOutcome(Message.COMMIT, "acknowledged early");
+				handedOff = true;
+				backgroundCommit = committer.submit(new Runnable() {
+					public void run() {
+						finishCommitInBackground(handlers, committed, transactionId);
+					}
+				});
+				return true;
+			}
+
+			if (piggyback) {
+				/* Optimised protocol: every cohort has PRE_COMMITted so the outcome is
+				 * fixed. Rather than a COMMIT/ACK_FINAL round trip now, the COMMIT rides
+				 * on the next QUERY (or goes alone after an idle period) and the cohorts'
+				 * ACK_FINALs ride on their next votes */
+				phaseStart = System.nanoTime();
+				phaseEvent = TraceEvents.startPhase(Message.COMMIT);
+				myStock = queryDatabase();
+				myStock.remove(stock);
+				writeDatabase(myStock, transactionId);
+				deferCommit();
+				metrics.recordOutcome(Message.COMMIT, "decision piggybacked");
+				metrics.recordPhase(NodeMetrics.Phase.FINAL, phaseStart);
+				TraceEvents.finishPhase(phaseEvent, Message.COMMIT);
+				return true;
+			}
 
 			/******* THIRD PHASE *******/
 			/* We make COMMIT or ABORT to cohorts */
-			for (int i = 0; i < sockets.length; i++) {
-				//Set each handler to a new instance containing the new message
-				CoordinatorSocketHandler csh = handlers.get(i);
-				csh.updateMessage(nextPhase);
-				handlers.set(i,csh);
-				//handlers.set(i, new CoordinatorSocketHandler(sockets[i], stockMessage, os[i], is[i]));
+			phaseMessage = EncodedMessage.of(nextPhase);
+			for (CoordinatorSocketHandler handler : handlers) {
+				//Point each handler at the new (shared) message
+				handler.updateMessage(phaseMessage);
 			}
 
-			return finalPhase(handlers, pool, myStock, stock, nextPhase);
+			phaseStart = System.nanoTime();
+			phaseEvent = TraceEvents.startPhase(Message.COMMIT);
+			boolean committed = finalPhase(handlers, pool, myStock, stock, nextPhase, transactionId);
+			metrics.recordPhase(NodeMetrics.Phase.FINAL, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, committed ? Message.COMMIT : Message.ABORT);
+			return committed;
 
 		} finally {
 			//Always executes before any return in this function, unlocks resources
-			dbLocked = false;
+			//unless the committer thread has taken over the lock
+			if (!handedOff) {
+				dbLocked = false;
+			}
+		}
+	}
+
+	/**
+	 * Method to run a phase in quorum mode. The phase message goes to every
+	 * cohort as usual, but the phase is decided as soon as enough cohorts have
+	 * given the wanted reply, or so many have given another reply that it can
+	 * never happen. Replies already in by then are counted too. Every other
+	 * cohort is a laggard, see repairInBackground(...)
+	 * @param handlers the handlers for the cohorts taking part, left holding
+	 * just those that gave the wanted reply
+	 * @param wanted the reply that counts towards the quorum
+	 * @param needed how many cohorts must give it
+	 * @param laggards filled in with every other handler and the future of its
+	 * exchange, which may not have finished
+	 * @return true if the quorum was reached
+	 **/
+	private boolean quorumPhase(ArrayList<CoordinatorSocketHandler> handlers, Message wanted, int needed, Map<CoordinatorSocketHandler, Future<Message>> laggards) {
+		ExecutorCompletionService<Message> completion = new ExecutorCompletionService<Message>(pool);
+		Map<Future<Message>, CoordinatorSocketHandler> outstanding = new LinkedHashMap<Future<Message>, CoordinatorSocketHandler>();
+		for (CoordinatorSocketHandler handler : handlers) {
+			outstanding.put(completion.submit(handler), handler);
+		}
+
+		ArrayList<CoordinatorSocketHandler> agreed = new ArrayList<CoordinatorSocketHandler>();
+		int others = 0; //replies that weren't the wanted one
+		try {
+			Future<Message> done = null;
+			while ((agreed.size() < needed && handlers.size() - others >= needed)
+					|| (done = completion.poll()) != null) {
+				if (done == null) {
+					done = completion.take();
+				}
+				CoordinatorSocketHandler handler = outstanding.remove(done);
+				Message response;
+				try {
+					response = done.get();
+				} catch (ExecutionException e) {
+					log.error("<ExecutionException occured waiting for {}>", handler.getConnection(), e);
+					response = null;
+				}
+				if (response == wanted) {
+					agreed.add(handler);
+				} else {
+					others++;
+					laggards.put(handler, done);
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			log.error("<InterruptedException occured waiting for a quorum>", e);
+			Thread.currentThread().interrupt();
+		}
+
+		for (Map.Entry<Future<Message>, CoordinatorSocketHandler> entry : outstanding.entrySet()) {
+			laggards.put(entry.getValue(), entry.getKey());
+		}
+		handlers.clear();
+		handlers.addAll(agreed);
+		if (agreed.size() < needed) {
+			log.warn("<Only {} of the {} {} replies needed for a quorum>", agreed.size(), needed, wanted);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Method to tell cohorts that PRE_COMMITted to ABORT after all, because
+	 * the write quorum wasn't reached. Waits for their ACK_FINALs
+	 * @param handlers the handlers for the cohorts that PRE_COMMITted
+	 **/
+	private void abortPreCommitted(ArrayList<CoordinatorSocketHandler> handlers) throws IOException {
+		EncodedMessage abort = EncodedMessage.of(Message.ABORT);
+		for (CoordinatorSocketHandler handler : handlers) {
+			handler.updateMessage(abort);
+		}
+		try {
+			pool.invokeAll(handlers);
+		} catch (InterruptedException e) {
+			log.error("<InterruptedException occured telling cohorts to ABORT>", e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Method to mark the laggards of a quorum phase as stale and repair them
+	 * in the background. A stale cohort is taken out of the membership at once
+	 * so no later transaction waits on it. Once it has replied to the phase it
+	 * lagged in, it is told the outcome of the transaction (so it doesn't go
+	 * its own way on a timeout) and then caught up with our stock, all on a
+	 * repairer thread, so no client waits on it
+	 * @param laggards the laggards and the futures of their unfinished exchanges
+	 * @param outcome what to tell them, COMMIT or ABORT
+	 * @param transactionId the transaction they lagged in
+	 **/
+	private void repairInBackground(Map<CoordinatorSocketHandler, Future<Message>> laggards, final Message outcome, final long transactionId) {
+		for (Map.Entry<CoordinatorSocketHandler, Future<Message>> entry : laggards.entrySet()) {
+			final CoordinatorSocketHandler handler = entry.getKey();
+			final Future<Message> reply = entry.getValue();
+			CohortMembership.View view = membership.remove(handler.getConnection());
+			log.warn("<{} lagged in transaction {} and is stale until repaired, membership is now {}>", handler.getConnection(), transactionId, view);
+			startRepair();
+			repairer.submit(new Runnable() {
+				public void run() {
+					try {
+						repair(handler, reply, outcome, transactionId);
+					} finally {
+						finishRepair();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Method run on a repairer thread to bring one stale cohort back, see
+	 * repairInBackground(...)
+	 **/
+	private void repair(CoordinatorSocketHandler handler, Future<Message> reply, Message outcome, long transactionId) {
+		TraceEvents.setTransaction(transactionId);
+		CohortConnection cohort = handler.getConnection();
+		try {
+			reply.get(); //the cohort's answer to the phase it lagged in, we no longer need it
+			if (!cohort.isFailed()) {
+				handler.updateMessage(EncodedMessage.of(outcome));
+				handler.call();
+			}
+		} catch (ExecutionException e) {
+			log.error("<Could not repair {}>", cohort, e);
+			cohort.markFailed();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cohort.markFailed();
+		} catch (IOException e) {
+			log.error("<Could not repair {}>", cohort, e);
+			cohort.markFailed();
+		} catch (ClassNotFoundException e) {
+			log.error("<Could not repair {}>", cohort, e);
+			cohort.markFailed();
+		}
+
+		if (cohort.isFailed()) {
+			log.warn("<Giving up on stale {}>", cohort);
+			try {
+				cohort.close();
+			} catch (IOException e) {
+				/* It's gone either way */
+			}
+			return;
+		}
+		log.info("<Stale {} was told to {} transaction {}, catching it up>", cohort, outcome, transactionId);
+		catchUp(cohort);
+	}
+
+	/**
+	 * Method to catch a repaired cohort up again on a repairer thread, because
+	 * something was committed since it last caught up
+	 * @param cohort the repaired cohort
+	 **/
+	private void catchUpInBackground(final CohortConnection cohort) {
+		startRepair();
+		repairer.submit(new Runnable() {
+			public void run() {
+				try {
+					catchUp(cohort);
+				} finally {
+					finishRepair();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Method run on a repairer thread to send a stale cohort our stock (SYNC)
+	 * and queue it to rejoin. It is added between transactions if nothing has
+	 * been committed since, see admitJoining(...)
+	 * @param cohort the stale cohort, already told the outcome of the transaction it lagged in
+	 **/
+	private void catchUp(CohortConnection cohort) {
+		try {
+			long applied;
+			StockList myStock;
+			synchronized (databaseWrites) {
+				applied = appliedTransaction;
+				myStock = queryDatabase();
+			}
+			Message reply = new CoordinatorSocketHandler(cohort, EncodedMessage.encode(new StockMessage(applied, myStock, Message.SYNC, null))).call();
+			if (reply == Message.ACK_SYNC) {
+				caughtUp.put(cohort, applied);
+				membership.requestJoin(cohort);
+				return;
+			}
+			log.error("<Stale {} could not catch up (replied {}), dropping it>", cohort, reply);
+		} catch (IOException e) {
+			log.error("<Could not catch up stale {}>", cohort, e);
+		} catch (ClassNotFoundException e) {
+			log.error("<Could not catch up stale {}>", cohort, e);
+		}
+		try {
+			cohort.close();
+		} catch (IOException e) {
+			/* It's gone either way */
+		}
+	}
+
+	/**
+	 * Method to count a repair starting, see awaitRepair(...)
+	 **/
+	private void startRepair() {
+		synchronized (repairs) {
+			repairing++;
+		}
+	}
+
+	/**
+	 * Method to count a repair finishing, successfully or not
+	 **/
+	private void finishRepair() {
+		synchronized (repairs) {
+			repairing--;
+			repaired++;
+			repairs.notifyAll();
+		}
+	}
+
+	/**
+	 * Getter for how many repairs have finished
+	 * @return the number of repairs finished so far
+	 **/
+	private long getRepaired() {
+		synchronized (repairs) {
+			return repaired;
+		}
+	}
+
+	/**
+	 * Method to wait for a repair to finish
+	 * @param before how many repairs had finished when we last looked, see getRepaired()
+	 * @param deadline when to give up waiting (nanoTime)
+	 * @return true if one has finished since, false if none were in progress or we gave up
+	 **/
+	private boolean awaitRepair(long before, long deadline) {
+		synchronized (repairs) {
+			try {
+				while (repaired == before && repairing > 0) {
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0) {
+						return false;
+					}
+					repairs.wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return repaired != before;
+		}
+	}
+
+	/**
+	 * Method run on the committer thread to finish a COMMIT the client has
+	 * already been told about: the third phase (or deferring it, with
+	 * piggybacking) and then writing our own database. The decision is already
+	 * on disk so our database is written whatever the cohorts say, and the
+	 * database lock is only released once it has been
+	 * @param handlers the socket handlers for this transaction
+	 * @param stock the stock our database holds once the transaction is applied
+	 * @param transactionId the id of the transaction
+	 **/
+	private void finishCommitInBackground(ArrayList<CoordinatorSocketHandler> handlers, StockList stock, long transactionId) {
+		long phaseStart = System.nanoTime();
+		TraceEvents.setTransaction(transactionId);
+		TraceEvents.Phase phaseEvent = TraceEvents.startPhase(Message.COMMIT);
+		boolean applied = false;
+		try {
+			if (piggyback) {
+				deferCommit();
+			} else {
+				EncodedMessage commit = EncodedMessage.of(Message.COMMIT);
+				for (CoordinatorSocketHandler handler : handlers) {
+					handler.updateMessage(commit);
+				}
+				for (Future<Message> future : pool.invokeAll(handlers)) {
+					try {
+						Message response = future.get();
+						if (response != Message.ACK_FINAL && response != Message.COMMIT) {
+							//COMMIT is what a handler returns if the cohort timed out, it commits by itself
+							log.warn("<Expected ACK_FINAL for early acknowledged transaction {} but got {}>", transactionId, response);
+						}
+					} catch (ExecutionException e) {
+						log.error("<Could not finish third phase of transaction {} with a cohort, it will COMMIT on timeout>", transactionId, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error("<Could not send third phase of transaction {}, cohorts that missed the COMMIT will COMMIT on timeout>", transactionId, e);
+		} catch (InterruptedException e) {
+			log.error("<Third phase of transaction {} interrupted, cohorts that missed the COMMIT will COMMIT on timeout>", transactionId, e);
+		}
+
+		try {
+			applied = applyDecision(stock, transactionId);
+			if (applied) {
+				log.info("<Background COMMIT of transaction {} complete>", transactionId);
+			}
+		} finally {
+			metrics.recordPhase(NodeMetrics.Phase.FINAL, phaseStart);
+			TraceEvents.finishPhase(phaseEvent, Message.COMMIT);
+			if (applied) {
+				dbLocked = false;
+			}
+		}
+	}
+
+	/**
+	 * Method to write a logged COMMIT decision to our database and mark it
+	 * done. If our database can't be written, releasing the database lock
+	 * would let later transactions (and the SYNCs catching cohorts up) build
+	 * on stock that is missing a COMMIT, so after a few tries we stop instead
+	 * and leave the decision to be replayed on restart
+	 * @param stock the stock our database holds once the transaction is applied
+	 * @param transactionId the id of the transaction
+	 * @return true if it was written, false if we are stopping and the database lock must not be released
+	 **/
+	private boolean applyDecision(StockList stock, long transactionId) {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				writeDatabase(stock, transactionId);
+				break;
+			} catch (IOException e) {
+				log.error("<Could not write COMMIT of transaction {} to our database, attempt {}>", transactionId, attempt, e);
+			}
+			if (attempt == WRITE_ATTEMPTS) {
+				log.error("<Stopping with the database locked, transaction {} will be replayed from the decision log on restart>", transactionId);
+				setStopping();
+				return false;
+			}
+			try {
+				Thread.sleep(100L * attempt);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		try {
+			decisions.recordDone(transactionId);
+		} catch (IOException e) {
+			/* Our database is right, replaying the decision on restart writes the same stock again */
+			log.error("<Could not mark transaction {} done in the decision log>", transactionId, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Method to wait for the committer thread to finish the last early
+	 * acknowledged COMMIT, if there is one
+	 **/
+	private void awaitBackgroundCommit() {
+		Future<?> pending = backgroundCommit;
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.error("<Background COMMIT failed>", e);
+		}
+	}
+
+	/**
+	 * Method to replay COMMIT decisions that were acknowledged to a client but
+	 * never applied to our database because we stopped first. The cohorts had
+	 * all PRE_COMMITted so they have applied these themselves. A decision may
+	 * have been applied with only its done record lost, so each one writes the
+	 * stock it leaves our database with rather than taking its request off again.
+	 * That stock is only right if nothing came after it, so a decision older
+	 * than one our database is known to hold is marked done, not replayed
+	 * @param snapshotTransaction the transaction of the newest snapshot, 0 if there is none
+	 **/
+	private void recoverInDoubtDecisions(long snapshotTransaction) throws IOException {
+		/* Our database holds at least the newest snapshot and the newest decision
+		 * marked done (compacting may have dropped the done records the snapshot covers) */
+		long applied = Math.max(snapshotTransaction, decisions.getLastDoneTransactionId());
+		for (DecisionLog.Decision decision : decisions.getInDoubt()) {
+			if (decision.transactionId < applied) {
+				log.warn("<Not replaying COMMIT of transaction {}, our database already holds transaction {} which came after it>", decision.transactionId, applied);
+			} else {
+				log.warn("<Replaying COMMIT of transaction {} from the decision log>", decision.transactionId);
+				TraceEvents.setTransaction(decision.transactionId);
+				writeDatabase(decision.stock, decision.transactionId);
+				applied = decision.transactionId;
+			}
+			decisions.recordDone(decision.transactionId);
+		}
+	}
+
+	/**
+	 * Method to restore our database from the newest snapshot if it has gone
+	 * missing. If COMMIT decisions were applied after the snapshot, the newest
+	 * of them holds our database as it was, so we end up there rather than
+	 * where the snapshot was. Without a decision log we can't know what came
+	 * after the snapshot, so we refuse to start rather than hand out stale
+	 * stock (not least to cohorts joining, see updateMembership(...))
+	 * @return the transaction the newest snapshot was taken at, 0 if there are none
+	 **/
+	private long restoreFromSnapshot() throws IOException {
+		SnapshotManager.Snapshot newest = snapshots.loadNewest();
+		if (newest == null) {
+			return 0;
+		}
+		if (!databaseExists()) {
+			if (decisions == null) {
+				throw new IOException("Database is missing and there is no decision log to bring the snapshot of transaction "
+						+ newest.transactionId + " up to date, restore it by hand or run with tpc.earlyAck");
+			}
+			log.warn("<Database is missing, restoring it from the snapshot of transaction {}>", newest.transactionId);
+			TraceEvents.setTransaction(newest.transactionId);
+			writeDatabase(newest.stock, newest.transactionId);
+			List<DecisionLog.Decision> applied = decisions.getAppliedAfter(newest.transactionId);
+			if (!applied.isEmpty()) {
+				DecisionLog.Decision decision = applied.get(applied.size() - 1);
+				TraceEvents.setTransaction(decision.transactionId);
+				writeDatabase(decision.stock, decision.transactionId);
+			}
+		}
+		return newest.transactionId;
+	}
+
+	/**
+	 * Method to read this node's database, timing how long it takes
+	 * @return the stock in this node's database
+	 **/
+	@Override
+	public StockList queryDatabase() throws IOException {
+		long start = System.nanoTime();
+		TraceEvents.Database event = new TraceEvents.Database();
+		event.begin();
+		try {
+			return super.queryDatabase();
+		} finally {
+			//not the metrics field, the Server constructor may read the database before it is set
+			NodeMetrics.get().recordDatabaseRead(start);
+			event.operation = "read";
+			event.finish();
+		}
+	}
+
+	/**
+	 * Method to write this node's database, timing how long it takes
+	 * @param stock the stock to write to the database
+	 **/
+	@Override
+	public void writeDatabase(StockList stock) throws IOException {
+		long start = System.nanoTime();
+		TraceEvents.Database event = new TraceEvents.Database();
+		event.begin();
+		try {
+			super.writeDatabase(stock);
+		} finally {
+			//not the metrics field, the Server constructor may read the database before it is set
+			NodeMetrics.get().recordDatabaseWrite(start);
+			event.operation = "write";
+			event.finish();
+		}
+	}
+
+	/**
+	 * Method to write this node's database for a transaction, noting what was
+	 * written for the next snapshot
+	 * @param stock the stock to write to the database
+	 * @param transactionId the transaction the stock is as of
+	 **/
+	private void writeDatabase(StockList stock, long transactionId) throws IOException {
+		synchronized (databaseWrites) {
+			writeDatabase(stock);
+			appliedTransaction = transactionId;
+		}
+		snapshots.applied(transactionId, stock);
+	}
+
+	/**
+	 * Getter for the last transaction written to our database
+	 * @return the transaction id, 0 if there has been none
+	 **/
+	private long getAppliedTransaction() {
+		synchronized (databaseWrites) {
+			return appliedTransaction;
+		}
+	}
+
+	/**
+	 * Method to take the deferred COMMIT decision, if there is one. Caller must
+	 * hold decisionLock
+	 * @return Message.COMMIT if a decision was waiting to be sent, null else
+	 **/
+	private Message takePendingCommit() {
+		if (!commitPending) {
+			return null;
+		}
+		commitPending = false;
+		return Message.COMMIT;
+	}
+
+	/**
+	 * Method to defer the COMMIT decision for the transaction that just finished
+	 * so it can ride on the next QUERY, and to schedule sending it alone if no
+	 * QUERY comes along within the idle period
+	 **/
+	private void deferCommit() {
+		final long generation;
+		synchronized (decisionLock) {
+			commitPending = true;
+			generation = ++commitGeneration;
+		}
+		idleFlusher.schedule(new Runnable() {
+			public void run() {
+				flushPendingCommit(generation);
+			}
+		}, piggybackIdleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to send a deferred COMMIT to every cohort on its own. Does nothing
+	 * if the decision has already gone out on a QUERY
+	 * @param generation the deferred COMMIT this flush is for, -1 for whatever is pending
+	 **/
+	private void flushPendingCommit(long generation) {
+		synchronized (decisionLock) {
+			if (!commitPending || (generation != -1 && generation != commitGeneration)) {
+				return;
+			}
+			commitPending = false;
+			/* Nothing else is on the wire while a decision is pending (the next
+			 * transaction takes it under this lock before sending its QUERY) */
+			CohortConnection[] cohorts = membership.getView().getCohorts();
+			for (int i = 0; i < cohorts.length; i++) {
+				try {
+					cohorts[i].send(EncodedMessage.of(Message.COMMIT));
+				} catch (IOException e) {
+					/* The cohort will COMMIT by itself once it times out, as it has PRE_COMMITted */
+					log.error("<Could not send deferred COMMIT to {}>", cohorts[i], e);
+				}
+			}
 		}
 	}
 
@@ -341,11 +1303,27 @@ public class CoordinatorServer extends Server {
 	public void close() throws IOException {
 		//Call close on super class (Server) and then close each socket, plus the server socket
 		//Conclude by unlocking resource
+		if (earlyAck) {
+			committer.shutdown();
+			awaitBackgroundCommit();
+		}
+		snapshots.close(); //takes a last snapshot, compacting the decision log
+		if (earlyAck) {
+			decisions.close();
+		}
+		if (piggyback) {
+			idleFlusher.shutdownNow();
+			flushPendingCommit(-1); //don't leave cohorts waiting for their timeout
+		}
+		pool.shutdown();
+		if (quorum) {
+			repairer.shutdownNow();
+		}
 		super.close();
-		for (int i = 0; i < sockets.length; i++) {
-			sockets[i].close();
+		serverSocket.close(); //stops the acceptor
+		for (CohortConnection cohort : membership.clear()) {
+			cohort.close();
 		}
-		serverSocket.close();
 		dbLocked = false;
 	}
 
@@ -1,8 +1,4 @@
-import dcs.os.StockList;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.Callable;
 
@@ -12,27 +8,26 @@ import java.util.concurrent.Callable;
  * Callable utlised by the thread pool. See CoordinatorServer and CohortServer.
  **/
 public class CoordinatorSocketHandler implements Callable<Message> {
-	private Socket socket; //socket this thread is using for comms
-	private ObjectOutputStream os;
-	private ObjectInputStream is;
-	private StockList stock;
+	private static final Log log = Log.forNode("coordinator");
+
+	private CohortConnection connection; //connection to the cohort this thread talks to
+	private EncodedMessage encoded; //the phase message, shared with every other handler
 	private Message message;
+	private long transactionId; //taken from the QUERY, for tracing
+	private boolean left; //the connection broke before the cohort voted on our QUERY, see hasLeft()
 
 	/**
 	 * Constructor takes in parameters for this handler, described in following
 	 * doc remarks;
-	 * @param socket the socket this thread is based upon
-	 * @param stockMessage the stock request message to be services
-	 * @param os the output stream for this thread to write out to
-	 * @param is the input stream for this thread to read in from
+	 * @param connection the connection to the cohort this thread is based upon
+	 * @param encoded the stock request message to be serviced, already encoded
 	 **/
-	public CoordinatorSocketHandler(Socket socket, StockMessage stockMessage, ObjectOutputStream os, ObjectInputStream is) {
+	public CoordinatorSocketHandler(CohortConnection connection, EncodedMessage encoded) {
 
-		this.socket = socket;
-		this.stock = stockMessage.getStock(); //get the stock list from the message
-		this.message = stockMessage.getMessage(); //get the 3PC message
-		this.os = os;
-		this.is = is;
+		this.connection = connection;
+		this.encoded = encoded;
+		this.message = encoded.getMessage().getMessage(); //get the 3PC message
+		this.transactionId = encoded.getMessage().getTransactionId();
 	}
 
 	/**
@@ -43,42 +38,113 @@ public class CoordinatorSocketHandler implements Callable<Message> {
 	public Message call() throws IOException, ClassNotFoundException {
 
 		Message response;
+		left = false;
+		if (connection.isFailed()) {
+			/* Any reply we read could be to an earlier message, so don't wait for one.
+			 * The cohort may still be alive so we tell it what we're doing all the same */
+			try {
+				connection.send(encoded);
+			} catch (IOException e) {
+				/* It's gone, nothing more to do */
+			}
+			left = message == Message.QUERY;
+			return responseWithoutReply();
+		}
+		long sent = System.nanoTime();
+		TraceEvents.Vote vote = new TraceEvents.Vote();
+		vote.begin();
 		try {
-			os.writeObject(new StockMessage(stock, message));
-			os.flush();
+			/* The frame was encoded once for every cohort, we just write the shared bytes */
+			connection.send(encoded);
 
-			socket.setSoTimeout(15000);
-			return ((StockMessage)is.readObject()).getMessage();
+			connection.setTimeout(15000);
+			response = connection.receive().getMessage();
+			while (response == Message.ACK_FINAL && (message == Message.QUERY || message == Message.SYNC)) {
+				/* A lone ACK_FINAL from the piggyback protocol that was sent while we
+				 * were idle, nobody is waiting on it so skip to the real reply. After a
+				 * COMMIT or ABORT in the third phase the ACK_FINAL is the real reply */
+				response = connection.receive().getMessage();
+			}
+			NodeMetrics.get().recordCohortRoundTrip(connection.getName(), sent);
+			vote.transactionId = transactionId;
+			vote.peer = connection.getName();
+			vote.message = response.toString();
+			vote.finish();
+			return response;
 
 		} catch (SocketTimeoutException e) {
 			/* A timeout occured. This means we have to make some sort of decision About
 			 * what to do next! See the case analysis below the switch statement for explanation */
 
-			System.err.println("<coordinator> <Timeout occurred, handling this now>");
+			log.warn("<Timeout occurred waiting for {}, handling this now>", connection);
+			NodeMetrics.get().recordCohortTimeout(connection.getName());
+			TraceEvents.timeout(transactionId, connection.getName(), "reply to " + message);
+			/* The late reply will still turn up on this connection and would be read
+			 * as the reply to whatever we send next, so the cohort is out of step
+			 * for good. It is taken out of the membership before the next transaction */
+			connection.markFailed();
+			return responseWithoutReply();
 
-			switch (this.message) {
-			case QUERY: return Message.UNABLE;
-			case PRE_COMMIT: return Message.ABORT;
-			case COMMIT: return Message.COMMIT;
-			case ABORT: return Message.ABORT;
-			default: System.err.println("<FATAL ERROR> <Invalid phase!>"); return null;
-			}
-			/* Case analysis:
-			 * If we had no response from the cohort when it received a message of:
-			 *  QUERY, then this cohort is in the UNABLE state (being dead is equivalent to not having stock)
-			 *  PRE_COMMIT, then the entire transaction must be ABORTed.
-			 *  COMMIT, then this cohort has already been PRE_COMMITed, we continue the COMMIT
-			 *  ABORT, we must continue ABORT on all other cohorts*/
+		} catch (IOException e) {
+			/* The connection broke, the cohort has gone. The coordinator takes the
+			 * cohort out of the membership before the next transaction. If it went
+			 * before voting on a QUERY it sits the transaction out, see hasLeft() */
+			log.error("<Connection to {} failed waiting for reply to {}: {}>", connection, message, e.toString());
+			connection.markFailed();
+			left = message == Message.QUERY;
+			return responseWithoutReply();
+		}
+	}
+
+	/**
+	 * Helper to decide what to take a cohort's answer as when it never gave one
+	 * @return the response the cohort is assumed to have made
+	 **/
+	private Message responseWithoutReply() {
+		switch (this.message) {
+		case QUERY: return Message.UNABLE;
+		case PRE_COMMIT: return Message.ABORT;
+		case COMMIT: return Message.COMMIT;
+		case ABORT: return Message.ABORT;
+		case SYNC: return Message.UNABLE;
+		default: log.error("<FATAL ERROR> <Invalid phase!>"); return null;
 		}
+		/* Case analysis:
+		 * If we had no response from the cohort when it received a message of:
+		 *  QUERY, then this cohort is in the UNABLE state (being dead is equivalent to not having stock)
+		 *  PRE_COMMIT, then the entire transaction must be ABORTed.
+		 *  COMMIT, then this cohort has already been PRE_COMMITed, we continue the COMMIT
+		 *  ABORT, we must continue ABORT on all other cohorts
+		 *  SYNC, then the cohort couldn't catch up so it is UNABLE to join */
+	}
+
+	/**
+	 * Getter for whether the cohort's connection broke before it voted on our
+	 * QUERY, eg: because it left while we were idle. Such a cohort holds nothing
+	 * for the transaction and is caught up (SYNC) if it comes back, so its
+	 * UNABLE is not a real vote and it can simply be left out
+	 * @return true if the last call was a QUERY the cohort never got to vote on
+	 **/
+	public boolean hasLeft() {
+		return left;
+	}
+
+	/**
+	 * Getter for the connection this handler talks to
+	 * @return the connection to the cohort
+	 **/
+	public CohortConnection getConnection() {
+		return connection;
 	}
 
 	/**
 	 * Setter for the message
-	 * @param message the message we want to update this handler to use
+	 * @param encoded the (already encoded) message we want to update this handler to use
 	 **/
-	public void updateMessage(Message message) {
+	public void updateMessage(EncodedMessage encoded) {
 		/* Allows us to update the message in subsequent phases without having to
  	 	 * reinstantiate a thread because that would be VERY expensive!*/
-		this.message = message;
+		this.encoded = encoded;
+		this.message = encoded.getMessage().getMessage();
 	}
 }
@@ -0,0 +1,329 @@
+import dcs.os.StockList;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only log of the coordinator's COMMIT decisions. When the client is
+ * acknowledged as soon as the decision is made (before the third phase and
+ * before the coordinator's own database is written) the decision has to
+ * survive a crash, so it is forced to disk here first. Once the coordinator's
+ * database has been written the transaction is marked done. On restart any
+ * decision without a matching done record is still in doubt and is replayed.
+ *
+ * A commit record holds the stock our database is left with once the
+ * transaction is applied, rather than the stock requested. The database is
+ * locked from the decision until it is applied, so that stock can't go out of
+ * date, and replaying a decision that had in fact been applied just writes
+ * the same stock again rather than taking the request off a second time.
+ *
+ * Each record is: a type byte ('C' commit or 'D' done), the transaction id,
+ * then for commits the length and serialized bytes of the resulting stock.
+ *
+ * The log would grow forever, so once a snapshot of the database has been
+ * taken (see SnapshotManager) everything it already covers is compacted away.
+ * Compacting is done alongside new records rather than holding them up,
+ * recordCommit(...) only waits while the compacted log is swapped in.
+ **/
+public class DecisionLog {
+	private static final byte COMMIT = 'C';
+	private static final byte DONE = 'D';
+
+	/**
+	 * A COMMIT decision read back from the log
+	 **/
+	public static class Decision {
+		public final long transactionId;
+		public final StockList stock; //our database once the transaction is applied
+
+		Decision(long transactionId, StockList stock) {
+			this.transactionId = transactionId;
+			this.stock = stock;
+		}
+	}
+
+	private final File file;
+	private final Object compacting = new Object(); //one compaction at a time
+	private FileChannel channel; //replaced when the log is compacted, guarded by this
+	private long lastTransactionId; //highest id seen in the log
+	private long lastDoneTransactionId; //highest id marked done, ie: the newest decision our database is known to hold
+	private final Map<Long, Decision> inDoubt; //decisions without a done record, oldest first
+
+	/**
+	 * Constructor opens (or creates) the log and reads back what is in it
+	 * @param file the file the log is kept in
+	 **/
+	public DecisionLog(File file) throws IOException {
+		this.file = file;
+		this.inDoubt = new LinkedHashMap<Long, Decision>();
+		long validLength = replay();
+		channel = open(validLength);
+	}
+
+	/**
+	 * Method to durably record a COMMIT decision. Returns only once it is on disk
+	 * @param transactionId the id of the transaction
+	 * @param stock the stock our database will hold once the transaction is applied
+	 **/
+	public synchronized void recordCommit(long transactionId, StockList stock) throws IOException {
+		write(channel, commitRecord(transactionId, stock));
+		channel.force(false);
+
+		inDoubt.put(transactionId, new Decision(transactionId, stock));
+		lastTransactionId = Math.max(lastTransactionId, transactionId);
+	}
+
+	/**
+	 * Method to record that a committed transaction has been fully applied.
+	 * This isn't forced to disk: if it is lost the decision is replayed on
+	 * restart, which writes the same stock to the database again
+	 * @param transactionId the id of the transaction
+	 **/
+	public synchronized void recordDone(long transactionId) throws IOException {
+		write(channel, doneRecord(transactionId));
+		inDoubt.remove(transactionId);
+		lastDoneTransactionId = Math.max(lastDoneTransactionId, transactionId);
+	}
+
+	/**
+	 * Getter for the decisions that were never marked done
+	 * @return the in doubt decisions, oldest first
+	 **/
+	public synchronized List<Decision> getInDoubt() {
+		return new ArrayList<Decision>(inDoubt.values());
+	}
+
+	/**
+	 * Method to read back the COMMIT decisions that were fully applied after a
+	 * given transaction, eg: to bring a database restored from a snapshot up
+	 * to date. Reads the whole log so is only meant for startup
+	 * @param transactionId the last transaction already applied
+	 * @return the decisions applied after it, oldest first
+	 **/
+	public synchronized List<Decision> getAppliedAfter(long transactionId) throws IOException {
+		Map<Long, Decision> commits = new LinkedHashMap<Long, Decision>();
+		Set<Long> done = new HashSet<Long>();
+		read(commits, done, Long.MAX_VALUE);
+		List<Decision> applied = new ArrayList<Decision>();
+		for (Decision decision : commits.values()) {
+			if (decision.transactionId > transactionId && done.contains(decision.transactionId)) {
+				applied.add(decision);
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Method to shrink the log once a snapshot covers everything up to and
+	 * including a transaction. Decisions that were fully applied by then are
+	 * dropped, anything newer or still in doubt is kept. The compacted log is
+	 * written to a temporary file and renamed over the old one, so a crash part
+	 * way through leaves the old log as it was.
+	 *
+	 * Reading the log and writing (and forcing) the compacted copy happens
+	 * without holding up new records. Only the records written since, which
+	 * are copied over as they are, and the rename hold them up
+	 * @param transactionId the last transaction the snapshot covers
+	 * @return the number of bytes the log shrank by
+	 **/
+	public long compact(long transactionId) throws IOException {
+		synchronized (compacting) {
+			long compactedUpTo;
+			synchronized (this) {
+				compactedUpTo = channel.size(); //records are written whole under this lock, so this is a record boundary
+			}
+			Map<Long, Decision> commits = new LinkedHashMap<Long, Decision>();
+			Set<Long> done = new HashSet<Long>();
+			read(commits, done, compactedUpTo);
+
+			File temp = new File(file.getPath() + ".tmp");
+			try (FileChannel out = new RandomAccessFile(temp, "rw").getChannel()) {
+				out.truncate(0);
+				for (Decision decision : commits.values()) {
+					boolean applied = done.contains(decision.transactionId);
+					if (applied && decision.transactionId <= transactionId) {
+						continue; //already in the snapshot
+					}
+					write(out, commitRecord(decision.transactionId, decision.stock));
+					if (applied) {
+						write(out, doneRecord(decision.transactionId));
+					}
+				}
+				out.force(true);
+
+				synchronized (this) {
+					/* Bring across whatever was written while we were compacting. A done
+					 * record in there is for a commit we kept, as we only dropped those
+					 * already marked done */
+					long oldLength = channel.size();
+					try (FileChannel old = new FileInputStream(file).getChannel()) {
+						long copied = compactedUpTo;
+						while (copied < oldLength) {
+							copied += old.transferTo(copied, oldLength - copied, out);
+						}
+					}
+					out.force(true);
+
+					channel.close();
+					try {
+						Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					} finally {
+						/* Whether or not the rename worked, carry on appending to whatever is there */
+						channel = open(file.length());
+					}
+					return oldLength - channel.size();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Getter for the highest transaction id in the log
+	 * @return the highest transaction id, 0 if the log is empty
+	 **/
+	public synchronized long getLastTransactionId() {
+		return lastTransactionId;
+	}
+
+	/**
+	 * Getter for the highest transaction id marked done. Done records a
+	 * snapshot covers may have been compacted away, see compact(...)
+	 * @return the highest transaction id marked done, 0 if there is none
+	 **/
+	public synchronized long getLastDoneTransactionId() {
+		return lastDoneTransactionId;
+	}
+
+	/**
+	 * Method to close the log
+	 **/
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Helper to open the log for appending
+	 * @param validLength the length of the log up to the end of the last complete record
+	 **/
+	private FileChannel open(long validLength) throws IOException {
+		FileChannel opened = new RandomAccessFile(file, "rw").getChannel();
+		/* Chop off any half-written record left by a crash so new records follow on cleanly */
+		opened.truncate(validLength);
+		opened.position(validLength);
+		return opened;
+	}
+
+	/**
+	 * Helper to build a COMMIT record
+	 **/
+	private static ByteBuffer commitRecord(long transactionId, StockList stock) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream os = new ObjectOutputStream(bytes);
+		os.writeObject(stock);
+		os.close();
+		byte[] body = bytes.toByteArray();
+
+		ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4 + body.length);
+		record.put(COMMIT).putLong(transactionId).putInt(body.length).put(body);
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Helper to build a done record
+	 **/
+	private static ByteBuffer doneRecord(long transactionId) {
+		ByteBuffer record = ByteBuffer.allocate(1 + 8);
+		record.put(DONE).putLong(transactionId);
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Helper to write a whole record at the end of a log
+	 **/
+	private static void write(FileChannel out, ByteBuffer record) throws IOException {
+		while (record.hasRemaining()) {
+			out.write(record);
+		}
+	}
+
+	/**
+	 * Method to read the existing log back, filling in inDoubt, lastTransactionId and lastDoneTransactionId
+	 * @return the length of the log up to the end of the last complete record
+	 **/
+	private long replay() throws IOException {
+		Map<Long, Decision> commits = new LinkedHashMap<Long, Decision>();
+		Set<Long> done = new HashSet<Long>();
+		long validLength = read(commits, done, Long.MAX_VALUE);
+		for (Decision decision : commits.values()) {
+			if (!done.contains(decision.transactionId)) {
+				inDoubt.put(decision.transactionId, decision);
+			} else {
+				lastDoneTransactionId = Math.max(lastDoneTransactionId, decision.transactionId);
+			}
+			lastTransactionId = Math.max(lastTransactionId, decision.transactionId);
+		}
+		return validLength;
+	}
+
+	/**
+	 * Method to read every complete record in the log, or in its first part
+	 * @param commits filled in with every COMMIT decision, oldest first
+	 * @param done filled in with the id of every transaction marked done
+	 * @param limit where to stop reading, must be the end of a record
+	 * @return the length of the log up to the end of the last complete record read
+	 **/
+	private long read(Map<Long, Decision> commits, Set<Long> done, long limit) throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		long validLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (validLength < limit) {
+				byte type = in.readByte();
+				long transactionId = in.readLong();
+				long length = 1 + 8;
+				if (type == COMMIT) {
+					int bodyLength = in.readInt();
+					if (bodyLength < 0 || bodyLength > 16 * 1024 * 1024) {
+						break; //garbage, treat as the end of the log
+					}
+					byte[] body = new byte[bodyLength];
+					in.readFully(body);
+					length += 4 + body.length;
+					ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(body));
+					commits.put(transactionId, new Decision(transactionId, (StockList)is.readObject()));
+				} else if (type == DONE) {
+					done.add(transactionId);
+				} else {
+					break; //garbage, treat as the end of the log
+				}
+				validLength += length;
+			}
+		} catch (EOFException e) {
+			/* End of the log, possibly part way through a record that never finished */
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Decision log " + file + " holds an unreadable stock list", e);
+		}
+		return validLength;
+	}
+}
@@ -0,0 +1,125 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * A StockMessage that has already been serialized into a frame ready to go
+ * on the wire: a 4 byte length followed by the serialized message. A phase
+ * message is encoded once and the very same frame is then written to every
+ * cohort, rather than each cohort's thread serializing its own copy. The
+ * frame is never modified after it is built so it is safe to share between
+ * threads.
+ **/
+public final class EncodedMessage {
+	private static final int MAX_FRAME = 16 * 1024 * 1024; //anything bigger than this is a corrupt stream
+
+	/* Messages without any stock never change, so we only ever encode them once. Indexed
+	 * by message and piggybacked message (slot 0 being no piggyback) */
+	private static final EncodedMessage[][] bare = new EncodedMessage[Message.values().length][Message.values().length + 1];
+
+	private final StockMessage message; //the message that was encoded
+	private final byte[] frame; //length prefix + serialized message, never modified
+
+	/**
+	 * Constructor is private, use encode(...) or of(...)
+	 **/
+	private EncodedMessage(StockMessage message, byte[] frame) {
+		this.message = message;
+		this.frame = frame;
+	}
+
+	/**
+	 * Method to serialize a message into a frame
+	 * @param message the message to encode
+	 * @return the encoded message
+	 **/
+	public static EncodedMessage encode(StockMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		/* Leave room for the length, we fill it in once we know it */
+		bytes.write(new byte[4]);
+		ObjectOutputStream os = new ObjectOutputStream(bytes);
+		os.writeObject(message);
+		os.close();
+
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - 4;
+		frame[0] = (byte)(length >>> 24);
+		frame[1] = (byte)(length >>> 16);
+		frame[2] = (byte)(length >>> 8);
+		frame[3] = (byte)length;
+		return new EncodedMessage(message, frame);
+	}
+
+	/**
+	 * Method to get the encoded form of a message that carries no stock
+	 * @param message the message
+	 * @return the (cached) encoded message
+	 **/
+	public static EncodedMessage of(Message message) throws IOException {
+		return of(message, null);
+	}
+
+	/**
+	 * Method to get the encoded form of a message that carries no stock but may
+	 * have another message piggybacked on it
+	 * @param message the message
+	 * @param piggyback the message riding along, null for none
+	 * @return the (cached) encoded message
+	 **/
+	public static EncodedMessage of(Message message, Message piggyback) throws IOException {
+		int slot = piggyback == null ? 0 : piggyback.ordinal() + 1;
+		EncodedMessage encoded = bare[message.ordinal()][slot];
+		if (encoded == null) {
+			/* Two threads may race to fill this in, that's fine, both encodings are identical */
+			encoded = encode(new StockMessage(null, message, piggyback));
+			bare[message.ordinal()][slot] = encoded;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Method to read one frame from a stream and deserialize it
+	 * @param in the stream to read from
+	 * @return the message that was in the frame
+	 **/
+	public static StockMessage read(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		if (length <= 0 || length > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length " + length);
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(body));
+		return (StockMessage)is.readObject();
+	}
+
+	/**
+	 * Method to write the whole frame to a stream in a single write
+	 * @param out the stream to write to
+	 **/
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(frame);
+		out.flush();
+	}
+
+	/**
+	 * Getter for the message that was encoded
+	 * @return the message
+	 **/
+	public StockMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * Get string representation of this message, see StockMessage.toString()
+	 * @return the message type
+	 **/
+	public String toString() {
+		return message.toString();
+	}
+}
@@ -0,0 +1,224 @@
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latency values. Values are grouped
+ * into buckets that double in width every 32 buckets, so every recorded value
+ * is kept to within roughly 3% of its true value whatever its magnitude.
+ * Recording is lock-free so many threads can share one histogram. The
+ * histogram doesn't care about units, callers decide (we usually use
+ * microseconds).
+ **/
+public class LatencyHistogram {
+
+	/**
+	 * The count, mean and a selection of percentiles of a histogram at one
+	 * moment. Over JMX this becomes a CompositeData with a number per field,
+	 * so each percentile can be graphed or alerted on
+	 **/
+	public static class Summary {
+		private final long count;
+		private final double mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+
+		@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+		public Summary(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getP999() {
+			return p999;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Get a short one line form of this summary, useful for logs
+		 * @return eg: count=10 mean=12.5 p50=11 p90=20 p99=31 p99.9=31 max=31
+		 **/
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+					count, mean, p50, p90, p99, p999, max);
+		}
+	}
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; //32 buckets per power of two
+	private static final int BUCKETS = 64 * SUB_BUCKETS; //enough to cover every positive long
+
+	private final AtomicLongArray counts; //number of values recorded in each bucket
+	private final AtomicLong totalCount; //number of values recorded overall
+	private final AtomicLong totalSum; //sum of every value recorded, for the mean
+	private final AtomicLong maxValue; //largest value recorded
+
+	/**
+	 * Constructor creates an empty histogram
+	 **/
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		totalCount = new AtomicLong();
+		totalSum = new AtomicLong();
+		maxValue = new AtomicLong();
+	}
+
+	/**
+	 * Method to record a single value
+	 * @param value the value to record, negative values are recorded as zero
+	 **/
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.incrementAndGet();
+		totalSum.addAndGet(value);
+
+		/* Only ever raise the max, retry if another thread beat us to it */
+		long max = maxValue.get();
+		while (value > max && !maxValue.compareAndSet(max, value)) {
+			max = maxValue.get();
+		}
+	}
+
+	/**
+	 * Method to empty this histogram
+	 **/
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalSum.set(0);
+		maxValue.set(0);
+	}
+
+	/**
+	 * Getter for the number of values recorded
+	 * @return the number of values recorded
+	 **/
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Getter for the largest value recorded
+	 * @return the largest value recorded, 0 if nothing has been recorded
+	 **/
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	/**
+	 * Getter for the mean of the values recorded
+	 * @return the mean value, 0 if nothing has been recorded
+	 **/
+	public double getMean() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double)totalSum.get() / count;
+	}
+
+	/**
+	 * Method to estimate the value at a given percentile
+	 * @param percentile the percentile wanted, between 0 and 100
+	 * @return the upper end of the bucket holding that percentile (capped at the
+	 * max recorded value), 0 if nothing has been recorded
+	 **/
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+		if (target < 1) {
+			target = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(bucketUpperBound(i), maxValue.get());
+			}
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * Getter for the count, mean and a selection of percentiles, see Summary
+	 * @return the summary of this histogram as it is now
+	 **/
+	public Summary getSummary() {
+		return new Summary(getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+				getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+	}
+
+	/**
+	 * Get a short one line summary of this histogram, useful for logs
+	 * @return the count, mean and a selection of percentiles
+	 **/
+	public String summary() {
+		return getSummary().toString();
+	}
+
+	/**
+	 * Works out which bucket a value belongs in. The first 64 values get a bucket
+	 * each, after that each power of two is split into 32 equally sized buckets
+	 * @param value the (non-negative) value
+	 * @return the index of the bucket
+	 **/
+	private static int bucketIndex(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int)value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int)(value >>> shift); //always between 32 and 63
+		return (shift + 1) * SUB_BUCKETS + (subBucket - SUB_BUCKETS);
+	}
+
+	/**
+	 * Works out the largest value that would land in a given bucket
+	 * @param index the index of the bucket
+	 * @return the largest value in that bucket
+	 **/
+	private static long bucketUpperBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		long upper = ((subBucket + 1) << shift) - 1;
+		return upper < 0 ? Long.MAX_VALUE : upper; //the very top bucket overflows
+	}
+}
@@ -0,0 +1,365 @@
+import dcs.os.Server;
+import dcs.os.StockList;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generating tool that drives the coordinator's client port with many
+ * concurrent clients. It can run closed-loop (each client sends its next
+ * request as soon as the last one is answered) or open-loop at a target
+ * request rate. In open-loop mode latency is measured from when each request
+ * was *meant* to be sent, so a stalled coordinator can't hide its queueing
+ * delay from us (coordinated omission). Several rates can be given to sweep
+ * the throughput/latency curve and find its knee.
+ *
+ * The percentiles in each row are for committed requests only. A coordinator
+ * without its scheduler turns a request away within a round trip if another
+ * is in progress, so counting aborts there would make latency fall as load
+ * rises past the knee. Aborted and failed requests are still reported, in a
+ * second histogram of every request, failures timed up to when they failed.
+ **/
+public class LoadGenerator {
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	/* Settings, all changed from the command line, see usage() */
+	private InetSocketAddress coordinator;
+	private int concurrency = 4;
+	private double[] rates = {0}; //requests per second across all clients, 0 means closed-loop
+	private long durationNanos = 30 * 1000000000L;
+	private long warmupNanos = 5 * 1000000000L;
+	private String[] items;
+	private boolean zipfian = false;
+	private double zipfExponent = 0.99;
+	private int requestSize = 1; //number of distinct items in each request
+	private int maxQuantity = 1; //each item in a request asks for 1..maxQuantity of it
+	private int timeoutMillis = 30000; //how long to wait for a reply before counting the request as an error
+
+	private double[] zipfCdf; //cumulative probabilities of picking each item
+
+	/* Results of the step currently being run */
+	private LatencyHistogram committedLatency; //latency of committed requests from intended send time, microseconds
+	private LatencyHistogram corrected; //latency of every request (up to failure for errors) from intended send time, microseconds
+	private LatencyHistogram uncorrected; //latency of every request (up to failure for errors) from actual send time, microseconds
+	private AtomicLong commits;
+	private AtomicLong aborts;
+	private AtomicLong errors;
+
+	/**
+	 * Method to print out how to use this tool
+	 **/
+	public static void usage() {
+		System.out.println("Usage:");
+		System.out.println("\tjava -cp .:TPC.jar LoadGenerator <coordinator client address> [options]");
+		System.out.println("\t\t<coordinator client address>: The address of the coordinator's client port, eg: localhost:9050");
+		System.out.println("\t\t--concurrency <n>: Number of concurrent client connections (default 4)");
+		System.out.println("\t\t--rate <r1,r2,...>: Target requests per second over all clients, one step is run per rate. 0 means closed-loop (default 0)");
+		System.out.println("\t\t--duration <seconds>: How long each step is measured for (default 30)");
+		System.out.println("\t\t--warmup <seconds>: How long each step runs before measuring begins (default 5)");
+		System.out.println("\t\t--items <n>: Number of distinct items, named item0..item<n-1> (default 10)");
+		System.out.println("\t\t--item-names <a,b,...>: Explicit item names, overrides --items");
+		System.out.println("\t\t--skew <uniform|zipf>: How items are picked (default uniform)");
+		System.out.println("\t\t--zipf-exponent <s>: Exponent for zipfian skew, higher is more skewed (default 0.99)");
+		System.out.println("\t\t--size <n>: Number of distinct items in each request (default 1)");
+		System.out.println("\t\t--quantity <q>: Each item in a request asks for between 1 and q units (default 1)");
+		System.out.println("\t\t--timeout <seconds>: How long to wait for a reply before counting the request as an error (default 30)");
+		System.out.println("\t\tExample: sweep open-loop rates with 16 clients and a hot set of items");
+		System.out.println("\t\t\tjava -cp .:TPC.jar LoadGenerator localhost:9050 --concurrency 16 --rate 50,100,200,400 --skew zipf");
+		System.exit(1);
+	}
+
+	/**
+	 * Main method; parses the settings and then runs one step per target rate
+	 * @param args command line arguments
+	 **/
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1) {
+			usage();
+		}
+		LoadGenerator generator = new LoadGenerator();
+		generator.parseArguments(args);
+
+		System.out.println("<load> <Driving " + generator.coordinator + " with " + generator.concurrency + " clients, "
+				+ (generator.zipfian ? "zipfian (s=" + generator.zipfExponent + ")" : "uniform") + " picks over "
+				+ generator.items.length + " items, " + generator.requestSize + " item(s) per request>");
+		System.out.println("<load> <Latencies are in milliseconds for committed requests, measured from the intended send time>");
+		System.out.println(String.format("%10s %10s %8s %8s %7s %9s %9s %9s %9s %9s",
+				"target/s", "actual/s", "commit%", "abort%", "errors", "p50", "p90", "p99", "p99.9", "max"));
+
+		for (double rate : generator.rates) {
+			generator.runStep(rate);
+		}
+	}
+
+	/**
+	 * Method to parse the command line into this generator's settings
+	 * @param args command line arguments
+	 **/
+	private void parseArguments(String[] args) {
+		InetSocketAddress[] addresses = Server.parseAddresses(args[0]);
+		if (addresses == null || addresses.length != 1) {
+			System.err.println("<load> <Exactly one coordinator address must be given>");
+			usage();
+		}
+		coordinator = addresses[0];
+		int numItems = 10;
+
+		try {
+			for (int i = 1; i < args.length; i += 2) {
+				if (i + 1 >= args.length) {
+					System.err.println("<load> <Option '" + args[i] + "' is missing its value>");
+					usage();
+				}
+				String value = args[i + 1];
+				switch (args[i]) {
+				case "--concurrency": concurrency = Integer.parseInt(value); break;
+				case "--rate":
+					String[] parts = value.split(",");
+					rates = new double[parts.length];
+					for (int r = 0; r < parts.length; r++) {
+						rates[r] = Double.parseDouble(parts[r]);
+					}
+					break;
+				case "--duration": durationNanos = (long)(Double.parseDouble(value) * NANOS_PER_SECOND); break;
+				case "--warmup": warmupNanos = (long)(Double.parseDouble(value) * NANOS_PER_SECOND); break;
+				case "--items": numItems = Integer.parseInt(value); break;
+				case "--item-names": items = value.split(","); break;
+				case "--skew":
+					if (!value.equals("uniform") && !value.equals("zipf")) {
+						System.err.println("<load> <Unknown skew '" + value + "'>");
+						usage();
+					}
+					zipfian = value.equals("zipf");
+					break;
+				case "--zipf-exponent": zipfExponent = Double.parseDouble(value); break;
+				case "--size": requestSize = Integer.parseInt(value); break;
+				case "--quantity": maxQuantity = Integer.parseInt(value); break;
+				case "--timeout": timeoutMillis = (int)(Double.parseDouble(value) * 1000); break;
+				default:
+					System.err.println("<load> <Unknown option '" + args[i] + "'>");
+					usage();
+					break;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("<load> <Could not parse a number: " + e.getMessage() + ">");
+			usage();
+		}
+
+		if (items == null) {
+			items = new String[numItems];
+			for (int i = 0; i < numItems; i++) {
+				items[i] = "item" + i;
+			}
+		}
+		if (concurrency < 1 || items.length < 1 || requestSize < 1 || maxQuantity < 1) {
+			System.err.println("<load> <Concurrency, items, size and quantity must all be at least 1>");
+			usage();
+		}
+		/* A request can't hold the same item twice */
+		requestSize = Math.min(requestSize, items.length);
+
+		/* Precompute the zipfian CDF once so picking an item is just a binary search */
+		zipfCdf = new double[items.length];
+		double total = 0;
+		for (int i = 0; i < items.length; i++) {
+			total += 1.0 / Math.pow(i + 1, zipfExponent);
+			zipfCdf[i] = total;
+		}
+		for (int i = 0; i < items.length; i++) {
+			zipfCdf[i] /= total;
+		}
+	}
+
+	/**
+	 * Method to run the clients at one target rate, then print a row of results
+	 * @param rate target requests per second over all clients, 0 for closed-loop
+	 **/
+	private void runStep(double rate) throws InterruptedException {
+		committedLatency = new LatencyHistogram();
+		corrected = new LatencyHistogram();
+		uncorrected = new LatencyHistogram();
+		commits = new AtomicLong();
+		aborts = new AtomicLong();
+		errors = new AtomicLong();
+
+		/* Each client sends at an equal share of the rate, staggered so they don't all fire together */
+		final long intervalNanos = rate > 0 ? (long)(concurrency * NANOS_PER_SECOND / rate) : 0;
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmupNanos;
+		final long end = measureFrom + durationNanos;
+
+		List<Thread> clients = new ArrayList<Thread>(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			final long firstSend = start + (intervalNanos * i) / concurrency;
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					runClient(firstSend, intervalNanos, measureFrom, end);
+				}
+			}, "load-client-" + i);
+			client.setDaemon(true);
+			clients.add(client);
+			client.start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+
+		double seconds = durationNanos / NANOS_PER_SECOND;
+		long done = commits.get() + aborts.get();
+		LatencyHistogram h = committedLatency;
+		System.out.println(String.format("%10s %10.1f %8.2f %8.2f %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+				rate > 0 ? String.format("%.1f", rate) : "closed", done / seconds,
+				percent(commits.get(), done), percent(aborts.get(), done), errors.get(),
+				h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+				h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+		System.out.println("<load> <every request incl. aborts and errors " + corrected.summary() + " us>");
+		if (rate > 0) {
+			System.out.println("<load> <every request, uncorrected (from actual send) " + uncorrected.summary() + " us>");
+		}
+	}
+
+	/**
+	 * Method run by each client thread. Keeps one connection open to the
+	 * coordinator and sends requests over it until the step ends
+	 * @param firstSend when the first request is meant to go out (nanoTime)
+	 * @param intervalNanos gap between this client's requests, 0 for closed-loop
+	 * @param measureFrom requests sent before this (nanoTime) are warmup
+	 * @param end no requests are sent after this (nanoTime)
+	 **/
+	private void runClient(long firstSend, long intervalNanos, long measureFrom, long end) {
+		Socket socket = null;
+		ObjectOutputStream os = null;
+		ObjectInputStream is = null;
+		long intended = firstSend;
+
+		while (true) {
+			if (intervalNanos > 0) {
+				/* Open-loop: wait for the intended send time. If we're behind then we
+				 * send straight away, the time we spent behind still counts */
+				long wait = intended - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			} else {
+				intended = System.nanoTime();
+			}
+			if (intended >= end) {
+				break;
+			}
+
+			long sent = System.nanoTime();
+			Boolean committed = null;
+			try {
+				if (socket == null) {
+					/* (Re)connect. Output stream must be created first so the stream header is sent */
+					socket = new Socket(coordinator.getAddress(), coordinator.getPort());
+					socket.setTcpNoDelay(true);
+					/* A hung coordinator mustn't hang this client, and so the whole sweep */
+					socket.setSoTimeout(timeoutMillis);
+					os = new ObjectOutputStream(socket.getOutputStream());
+					os.flush();
+					is = new ObjectInputStream(socket.getInputStream());
+				}
+				os.writeObject(buildRequest());
+				os.flush();
+				os.reset(); //don't let the stream keep hold of every request we send
+				committed = (Boolean)is.readObject();
+
+			} catch (IOException | ClassNotFoundException | ClassCastException e) {
+				if (intended >= measureFrom) {
+					errors.incrementAndGet();
+				}
+				closeQuietly(socket);
+				socket = null;
+			}
+			long finished = System.nanoTime();
+
+			if (intended >= measureFrom) {
+				if (committed == null) {
+					/* Counted as an error above. It is still timed up to when it failed,
+					 * leaving out the slowest requests is the omission we correct for */
+				} else if (committed) {
+					commits.incrementAndGet();
+					committedLatency.record((finished - intended) / 1000);
+				} else {
+					aborts.incrementAndGet();
+				}
+				corrected.record((finished - intended) / 1000);
+				uncorrected.record((finished - sent) / 1000);
+			}
+			intended += intervalNanos;
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * Method to build a random stock request of requestSize distinct items
+	 * @return the stock request
+	 **/
+	private StockList buildRequest() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		StockList request = new StockList();
+		boolean[] picked = new boolean[items.length];
+		for (int n = 0; n < requestSize; n++) {
+			int item;
+			do {
+				item = pickItem(random);
+			} while (picked[item]);
+			picked[item] = true;
+			request.add(items[item], 1 + random.nextInt(maxQuantity));
+		}
+		return request;
+	}
+
+	/**
+	 * Method to pick an item index according to the configured skew
+	 * @param random the random number generator to use
+	 * @return the index of the item in items
+	 **/
+	private int pickItem(ThreadLocalRandom random) {
+		if (!zipfian) {
+			return random.nextInt(items.length);
+		}
+		/* Binary search the CDF for the first item at or above our random point */
+		double point = random.nextDouble();
+		int low = 0;
+		int high = zipfCdf.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (zipfCdf[mid] < point) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Helper to turn a count into a percentage of a total
+	 **/
+	private static double percent(long count, long total) {
+		return total == 0 ? 0 : 100.0 * count / total;
+	}
+
+	/**
+	 * Helper to close a socket, ignoring any failure since we're discarding it
+	 **/
+	private static void closeQuietly(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				/* Nothing useful to do, the connection is being thrown away */
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous logger so that transactions never wait on a slow console or
+ * redirected file. Each log call just drops its template and arguments into a
+ * slot of a fixed-size ring buffer and returns; a single background thread
+ * does the formatting and the printing. Nothing is allocated per line (beyond
+ * any boxing the caller does) and if the buffer is full the line is dropped
+ * and counted rather than making the transaction wait.
+ *
+ * Templates use {} as placeholders, eg: log.info("<Cohort voted for {}>", msg).
+ * Arguments are formatted later on the logging thread, so they should not be
+ * changed after being logged. If the last argument is a Throwable with no {}
+ * left for it then its stack trace is printed after the line.
+ *
+ * The level is set with -Dtpc.log.level (DEBUG, INFO, WARN or ERROR, default
+ * INFO) and the buffer size with -Dtpc.log.buffer (default 8192 lines).
+ **/
+public final class Log {
+
+	/**
+	 * The levels a line can be logged at, in increasing order of severity
+	 **/
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	private static final int threshold = parseLevel(System.getProperty("tpc.log.level", "INFO")).ordinal();
+	private static final RingBuffer buffer = new RingBuffer(Integer.getInteger("tpc.log.buffer", 8192));
+
+	private final String tag; //eg: <coordinator>, printed at the start of every line
+
+	/**
+	 * Constructor is private, use forNode(...)
+	 * @param node the name of the node this logger is for
+	 **/
+	private Log(String node) {
+		this.tag = "<" + node + ">";
+	}
+
+	/**
+	 * Method to get a logger whose lines are tagged with a node name
+	 * @param node the name of the node, eg: coordinator or cohort
+	 * @return a logger for that node
+	 **/
+	public static Log forNode(String node) {
+		return new Log(node);
+	}
+
+	/**
+	 * Getter for the number of lines dropped because the buffer was full
+	 * @return the number of dropped lines since the node started
+	 **/
+	public static long getDroppedCount() {
+		return buffer.dropped.get();
+	}
+
+	/**
+	 * Method to check whether a level is being logged, for callers that need to
+	 * do real work to build their arguments
+	 * @param level the level to check
+	 * @return true if lines at this level are being logged
+	 **/
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold;
+	}
+
+	/**
+	 * Method to wait (briefly) until everything logged so far has been printed.
+	 * Called on shutdown, but also handy before System.exit(...)
+	 **/
+	public static void flush() {
+		buffer.flush();
+	}
+
+	public void debug(String template) { log(Level.DEBUG, template, null, null, null); }
+	public void debug(String template, Object a) { log(Level.DEBUG, template, a, null, null); }
+	public void debug(String template, Object a, Object b) { log(Level.DEBUG, template, a, b, null); }
+	public void debug(String template, Object a, Object b, Object c) { log(Level.DEBUG, template, a, b, c); }
+
+	public void info(String template) { log(Level.INFO, template, null, null, null); }
+	public void info(String template, Object a) { log(Level.INFO, template, a, null, null); }
+	public void info(String template, Object a, Object b) { log(Level.INFO, template, a, b, null); }
+	public void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, a, b, c); }
+
+	public void warn(String template) { log(Level.WARN, template, null, null, null); }
+	public void warn(String template, Object a) { log(Level.WARN, template, a, null, null); }
+	public void warn(String template, Object a, Object b) { log(Level.WARN, template, a, b, null); }
+	public void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, a, b, c); }
+
+	public void error(String template) { log(Level.ERROR, template, null, null, null); }
+	public void error(String template, Object a) { log(Level.ERROR, template, a, null, null); }
+	public void error(String template, Object a, Object b) { log(Level.ERROR, template, a, b, null); }
+	public void error(String template, Object a, Object b, Object c) { log(Level.ERROR, template, a, b, c); }
+
+	/**
+	 * Method every level funnels into. Disabled levels return straight away
+	 **/
+	private void log(Level level, String template, Object a, Object b, Object c) {
+		if (level.ordinal() < threshold) {
+			return;
+		}
+		buffer.offer(level, tag, template, a, b, c);
+	}
+
+	/**
+	 * Helper to turn a level name into a Level, falling back to INFO
+	 **/
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("<log> {err} <Unknown log level '" + name + "', using INFO>");
+			return Level.INFO;
+		}
+	}
+
+	/**
+	 * A slot in the ring buffer. Slots are allocated once up front and reused.
+	 * The sequence number says whose turn it is to use the slot: a producer may
+	 * fill it when sequence == position, the writer may read it when
+	 * sequence == position + 1
+	 **/
+	private static final class Entry {
+		volatile long sequence;
+		Level level;
+		String tag;
+		String template;
+		Object a, b, c;
+	}
+
+	/**
+	 * A bounded multi-producer, single-consumer ring buffer of log lines, plus
+	 * the background thread that prints them
+	 **/
+	private static final class RingBuffer implements Runnable {
+		private final Entry[] slots;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong(); //next position a producer will claim
+		private volatile long head; //next position the writer will read, only written by the writer
+		private final AtomicLong dropped = new AtomicLong();
+		private final StringBuilder line = new StringBuilder(256); //reused by the writer for every line
+		private final Thread writer;
+		private long droppedReported; //dropped count when we last told the user about it
+
+		/**
+		 * Constructor creates the slots and starts the writer thread
+		 * @param capacity the number of lines that can be waiting, rounded up to a power of two
+		 **/
+		RingBuffer(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+			slots = new Entry[size];
+			mask = size - 1;
+			for (int i = 0; i < size; i++) {
+				slots[i] = new Entry();
+				slots[i].sequence = i;
+			}
+			writer = new Thread(this, "log-writer");
+			writer.setDaemon(true); //the node's own threads decide when it exits
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, "log-flush"));
+		}
+
+		/**
+		 * Method to claim a slot and fill it, or count a drop if there are none free
+		 **/
+		void offer(Level level, String tag, String template, Object a, Object b, Object c) {
+			long position = tail.get();
+			Entry entry;
+			while (true) {
+				entry = slots[(int)position & mask];
+				long difference = entry.sequence - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						break; //the slot is ours
+					}
+					position = tail.get();
+				} else if (difference < 0) {
+					/* The writer hasn't freed this slot yet, so the buffer is full */
+					dropped.incrementAndGet();
+					return;
+				} else {
+					/* Another producer claimed it first, try the next one */
+					position = tail.get();
+				}
+			}
+			entry.level = level;
+			entry.tag = tag;
+			entry.template = template;
+			entry.a = a;
+			entry.b = b;
+			entry.c = c;
+			entry.sequence = position + 1; //publish it to the writer
+		}
+
+		/**
+		 * The writer thread; prints lines as they arrive, napping when there are none
+		 **/
+		@Override
+		public void run() {
+			while (true) {
+				if (!drain()) {
+					LockSupport.parkNanos(1000000); //1ms, producers never wake us so they never pay for it
+				}
+			}
+		}
+
+		/**
+		 * Method to print every line that is currently waiting
+		 * @return true if at least one line was printed
+		 **/
+		private synchronized boolean drain() {
+			boolean printed = false;
+			long position = head;
+			while (true) {
+				Entry entry = slots[(int)position & mask];
+				if (entry.sequence != position + 1) {
+					break; //nothing (more) has been published
+				}
+				PrintStream out = entry.level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+				Throwable thrown = format(entry);
+				out.println(line);
+				if (thrown != null) {
+					thrown.printStackTrace(out);
+				}
+				entry.template = null; //don't keep arguments alive
+				entry.a = entry.b = entry.c = null;
+				entry.sequence = position + slots.length; //free the slot for the lap after this one
+				position++;
+				head = position;
+				printed = true;
+			}
+
+			long droppedNow = dropped.get();
+			if (droppedNow != droppedReported) {
+				System.err.println("<log> {err} <" + (droppedNow - droppedReported) + " log lines dropped because the log buffer was full>");
+				droppedReported = droppedNow;
+			}
+			if (printed) {
+				System.out.flush();
+				System.err.flush();
+			}
+			return printed;
+		}
+
+		/**
+		 * Method to wait for everything currently in the buffer to be printed
+		 **/
+		void flush() {
+			long target = tail.get();
+			long deadline = System.nanoTime() + 1000000000L; //give up after a second rather than hang shutdown
+			while (head < target && System.nanoTime() < deadline) {
+				drain();
+				Thread.yield();
+			}
+		}
+
+		/**
+		 * Method to format an entry into the reusable line buffer
+		 * @param entry the entry to format
+		 * @return the Throwable to print after the line, or null
+		 **/
+		private Throwable format(Entry entry) {
+			line.setLength(0);
+			line.append(entry.tag).append(' ');
+			if (entry.level == Level.ERROR) {
+				line.append("{err} ");
+			} else if (entry.level == Level.WARN) {
+				line.append("{warn} ");
+			}
+
+			int used = 0;
+			String template = entry.template;
+			int from = 0;
+			int at;
+			while ((at = template.indexOf("{}", from)) >= 0 && used < 3) {
+				line.append(template, from, at).append(argument(entry, used++));
+				from = at + 2;
+			}
+			line.append(template, from, template.length());
+
+			/* A Throwable that didn't fill a placeholder is printed as a stack trace */
+			for (int i = 2; i >= used; i--) {
+				if (argument(entry, i) instanceof Throwable) {
+					return (Throwable)argument(entry, i);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Helper to get an entry's arguments by position
+		 **/
+		private static Object argument(Entry entry, int i) {
+			switch (i) {
+			case 0: return entry.a;
+			case 1: return entry.b;
+			default: return entry.c;
+			}
+		}
+	}
+}
@@ -10,5 +10,6 @@ public enum Message implements Serializable {
 	PRE_COMMIT, ABORT,
 	COMMIT,
 	ACK_PRE_COMMIT, ACK_ABORT,
-	ACK_FINAL
+	ACK_FINAL,
+	SYNC, ACK_SYNC
 }
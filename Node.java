@@ -11,6 +11,8 @@ import java.net.InetSocketAddress;
 * The main class that runs a particular server node instance
 **/
 public class Node {
+	private static final Log cohortLog = Log.forNode("cohort");
+	private static final Log coordinatorLog = Log.forNode("coordinator");
 
 	/**
 	 * Method to print out to the run script how to use this programme through
@@ -24,7 +26,7 @@ public class Node {
 		System.out.println("\tjava -cp .:TPC.jar Node coordinator <coordinator port> <client port> <number of cohorts> <database path>");
 		System.out.println("\t\t<coordinator port>: The port that this coordinator listens on for cohorts");
 		System.out.println("\t\t<client port>: The port that this coordinator listens on for a client");
-		System.out.println("\t\t<number of cohorts>: A value that dictates how many cohorts this coordinator will connect to");
+		System.out.println("\t\t<number of cohorts>: A value that dictates how many cohorts this coordinator will connect to before serving clients. More cohorts can join later, they catch up between transactions");
 		System.out.println("\t\t<database path>: The path to the database file for this server, this needs to be unique for each server");
 		System.out.println("\t\tExamples of coordinator usage: ");
 		System.out.println("\t\t\tCreate a coordinator that connects to 14 cohorts (ie: there will be 15 servers in total");
@@ -38,6 +40,24 @@ public class Node {
 		System.out.println("\t\tExamples of cohort usage: ");
 		System.out.println("\t\t\tCreate a cohort that connects to the coordinator example above");
 		System.out.println("\t\t\t\tjava -cp .:TPC.jar Node cohort localhost:9030 db2.txt");
+		System.out.println("Optional system properties (java -D<property>=<value> ...):");
+		System.out.println("\ttpc.metrics.file: Dump this node's metrics to the given file periodically (they are always available over JMX)");
+		System.out.println("\ttpc.metrics.interval: Seconds between metrics dumps (default 10)");
+		System.out.println("\ttpc.piggyback: true to piggyback COMMIT decisions and ACK_FINALs onto the next transaction, must be the same on every node (default false)");
+		System.out.println("\ttpc.piggyback.idle: Milliseconds a piggybacked message waits for a ride before being sent alone (default 10)");
+		System.out.println("\ttpc.earlyAck: true to reply to the client as soon as a COMMIT is certain and logged, finishing the third phase in the background (default false)");
+		System.out.println("\ttpc.snapshot.interval: Seconds between background snapshots of this node's stock, 0 for none (default 0). Set it on the coordinator too so transaction ids carry on across restarts. A coordinator only restores a missing database from a snapshot with tpc.earlyAck, whose decision log brings it up to date");
+		System.out.println("\ttpc.snapshot.retain: Number of snapshots to keep (default 2)");
+		System.out.println("\ttpc.scheduler: true to queue client requests that arrive while the coordinator is busy instead of turning them away, refusing early any the stock can't satisfy (default false)");
+		System.out.println("\ttpc.scheduler.maxBypass: Times a waiting request may be passed over for one that conflicts with fewer others (default 4, 0 for first come first served)");
+		System.out.println("\ttpc.scheduler.queue: Number of requests that can wait before new ones are turned away (default 64)");
+		System.out.println("\ttpc.quorum.read: Cohorts that must vote READY before the coordinator PRE_COMMITs, 0 for every cohort (default 0). Slower cohorts are marked stale, told the outcome and caught up in the background");
+		System.out.println("\ttpc.quorum.write: Cohorts that must acknowledge PRE_COMMIT before the coordinator COMMITs, at least 1 and at most the read quorum (default the read quorum)");
+		System.out.println("\ttpc.quorum.repairWait: Milliseconds a transaction waits for stale cohorts to be repaired when there are too few members for a read quorum (default 1000)");
+		System.out.println("\ttpc.log.level: Lowest level that gets logged; DEBUG, INFO, WARN or ERROR (default INFO)");
+		System.out.println("\ttpc.log.buffer: Number of log lines that can wait to be printed before lines are dropped (default 8192)");
+		System.out.println("To trace transactions across nodes, record each node with java -XX:StartFlightRecording=filename=<node>.jfr ...");
+		System.out.println("\tthen merge the recordings into one timeline per transaction with: java TraceMerge <node>.jfr ...");
 		System.exit(1);
 	}
 
@@ -73,32 +93,32 @@ public class Node {
 		// parse the address of the coordinator into singleton array
 		InetSocketAddress[] coordAddress = Server.parseAddresses(args[1]);
 		if (coordAddress.length != 1) {
-			System.err.println("<cohort>> <Multiple coordinator addresses were supplied which should not have happenned, now killing this node>");
+			cohortLog.error("<Multiple coordinator addresses were supplied which should not have happenned, now killing this node>");
+			Log.flush();
 			System.exit(1);
 		}
 		String databasePath = args[2]; //grab db path from command line
 
+		NodeMetrics.register("cohort-" + databasePath);
 		CohortServer cohort = new CohortServer(databasePath);
 
 		//connect this cohort to the coord
-		System.out.println("<cohort> <Connecting to coordinator>");
+		cohortLog.info("<Connecting to coordinator>");
 		cohort.connectServers(coordAddress);
-		System.out.println("<cohort> <Successfully connected to coordinator>");
+		cohortLog.info("<Successfully connected to coordinator>");
 
 		//while cohort is running (not stopping), we must handle requests!
 		while (!cohort.isStopping()) {
 			try {
-				System.out.println("<cohort> <Now ready for communications>");
+				cohortLog.info("<Now ready for communications>");
 				cohort.handleCoordinatorRequest();
 			} catch (ClassNotFoundException e) {
 				/* Shouldn't ever occur, we know that the objects being written to / read
 				 * from streams is always of class type StockMessage, declared in this file */
-				System.err.println("<cohort> {err] }<ClassNotFoundException occured. Killing this node and printing stack trace>");
-				e.printStackTrace();
+				cohortLog.error("<ClassNotFoundException occured. Killing this node and printing stack trace>", e);
 				cohort.setStopping();
 			} catch (IOException e) {
-				System.err.println("<cohort> {err} <IOException occured. Killing this node and printing stack trace>");
-				e.printStackTrace();
+				cohortLog.error("<IOException occured. Killing this node and printing stack trace>", e);
 				cohort.setStopping();
 			}
 		}
@@ -123,24 +143,29 @@ public class Node {
 		int clientListenPort = Integer.parseInt(args[2]);
 
 		int numOtherServers = Integer.parseInt(args[3]);
+		String quorumError = CoordinatorServer.checkQuorum(numOtherServers);
+		if (quorumError != null) {
+			System.err.println(quorumError);
+			usage();
+		}
 		String databasePath = args[4]; // The path to the database file
+		NodeMetrics.register("coordinator");
 		CoordinatorServer coordinator = new CoordinatorServer(databasePath, numOtherServers);
 
 		try {
 			//Should probably call acceptClients() after connectServers()
 
 			coordinator.acceptServers(serverListenPort);
-			System.out.println("<coordinator> <Have successfully connected to all cohorts>");
+			coordinatorLog.info("<Have successfully connected to all initial cohorts, more may join later>");
 
-			System.out.println("<coordinator> <About to begin listening out for client>");
+			coordinatorLog.info("<About to begin listening out for client>");
 			coordinator.acceptClients(clientListenPort);
 
 			//keeping on waiting for next request while coordinating is running (NOT stopping)
 			while (!coordinator.isStopping());
 
 		} catch (IOException e) {
-			System.err.println("<coordinator> {err} IOException occurred.>");
-			e.printStackTrace(System.err);
+			coordinatorLog.error("<IOException occurred.>", e);
 
 		} finally {
 			//never gets run as we want our server on 24/7
@@ -0,0 +1,397 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class holding the instrumentation for a single node: phase latencies,
+ * per-cohort round trips and timeouts, outcome counts, lock waits and
+ * database I/O. There is one instance per JVM (each node runs in its own
+ * process) which is registered as an MBean, and it can optionally dump itself
+ * to a file every so often.
+ **/
+public class NodeMetrics implements NodeMetricsMXBean {
+
+	/**
+	 * The phases of 3PC that we time
+	 **/
+	public enum Phase { QUERY, PRE_COMMIT, FINAL }
+
+	private static NodeMetrics instance = new NodeMetrics("unregistered"); //replaced by register(...)
+
+	private final String node;
+	private final LatencyHistogram[] phaseLatency; //indexed by Phase.ordinal()
+	private final ConcurrentHashMap<String, LatencyHistogram> cohortRoundTrip;
+	private final ConcurrentHashMap<String, AtomicLong> cohortTimeouts;
+	private final ConcurrentHashMap<String, AtomicLong> outcomes; //keyed by "OUTCOME: reason"
+	private final AtomicLong commits;
+	private final AtomicLong aborts;
+	private final AtomicLong unables;
+	private final LatencyHistogram lockWait;
+	private final AtomicLong lockContended;
+	private final LatencyHistogram databaseRead;
+	private final LatencyHistogram databaseWrite;
+	private volatile long membershipVersion;
+	private volatile int cohortCount;
+
+	/**
+	 * Constructor creates an empty set of metrics
+	 * @param node the name of the node these metrics belong to
+	 **/
+	private NodeMetrics(String node) {
+		this.node = node;
+		phaseLatency = new LatencyHistogram[Phase.values().length];
+		for (int i = 0; i < phaseLatency.length; i++) {
+			phaseLatency[i] = new LatencyHistogram();
+		}
+		cohortRoundTrip = new ConcurrentHashMap<String, LatencyHistogram>();
+		cohortTimeouts = new ConcurrentHashMap<String, AtomicLong>();
+		outcomes = new ConcurrentHashMap<String, AtomicLong>();
+		commits = new AtomicLong();
+		aborts = new AtomicLong();
+		unables = new AtomicLong();
+		lockWait = new LatencyHistogram();
+		lockContended = new AtomicLong();
+		databaseRead = new LatencyHistogram();
+		databaseWrite = new LatencyHistogram();
+	}
+
+	/**
+	 * Method to create this node's metrics and register them as an MBean. If
+	 * the tpc.metrics.file system property is set then the metrics are also
+	 * dumped to that file every tpc.metrics.interval seconds (default 10).
+	 * @param node the name of this node, eg: coordinator or cohort
+	 * @return the newly registered metrics
+	 **/
+	public static synchronized NodeMetrics register(String node) {
+		instance = new NodeMetrics(node);
+		try {
+			ObjectName name = new ObjectName("tpc:type=NodeMetrics,node=" + ObjectName.quote(node));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, name);
+		} catch (JMException e) {
+			/* Metrics are still collected (and dumped), they just can't be seen over JMX */
+			Log.forNode(node).error("<Could not register metrics MBean: {}>", e.toString());
+		}
+
+		String dumpPath = System.getProperty("tpc.metrics.file");
+		if (dumpPath != null) {
+			instance.startDumping(new File(dumpPath), Long.getLong("tpc.metrics.interval", 10));
+		}
+		return instance;
+	}
+
+	/**
+	 * Getter for this node's metrics
+	 * @return the metrics for the node running in this JVM
+	 **/
+	public static NodeMetrics get() {
+		return instance;
+	}
+
+	/**
+	 * Method to record how long a phase took
+	 * @param phase the phase
+	 * @param startNanos when the phase began, from System.nanoTime()
+	 **/
+	public void recordPhase(Phase phase, long startNanos) {
+		phaseLatency[phase.ordinal()].record(microsSince(startNanos));
+	}
+
+	/**
+	 * Method to record a round trip to a cohort
+	 * @param cohort the name of the cohort
+	 * @param startNanos when the message to the cohort was sent, from System.nanoTime()
+	 **/
+	public void recordCohortRoundTrip(String cohort, long startNanos) {
+		LatencyHistogram h = cohortRoundTrip.get(cohort);
+		if (h == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			h = cohortRoundTrip.putIfAbsent(cohort, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		h.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Method to record that we timed out waiting for a cohort
+	 * @param cohort the name of the cohort
+	 **/
+	public void recordCohortTimeout(String cohort) {
+		increment(cohortTimeouts, cohort);
+	}
+
+	/**
+	 * Method to forget the round trips and timeouts of a cohort that has left.
+	 * A cohort that comes back connects from a new port, so under a new name,
+	 * and without this every cohort that ever connected would be kept
+	 * @param cohort the name of the cohort
+	 **/
+	public void removeCohort(String cohort) {
+		cohortRoundTrip.remove(cohort);
+		cohortTimeouts.remove(cohort);
+	}
+
+	/**
+	 * Method to record the outcome of a transaction at this node
+	 * @param outcome one of Message.COMMIT, Message.ABORT or Message.UNABLE
+	 * @param reason a short, fixed description of why, eg: "not enough stock"
+	 **/
+	public void recordOutcome(Message outcome, String reason) {
+		switch (outcome) {
+		case COMMIT: commits.incrementAndGet(); break;
+		case ABORT: aborts.incrementAndGet(); break;
+		case UNABLE: unables.incrementAndGet(); break;
+		default: break;
+		}
+		increment(outcomes, outcome + ": " + reason);
+	}
+
+	/**
+	 * Method to record how long a transaction waited to lock the database
+	 * @param startNanos when the transaction started waiting, from System.nanoTime()
+	 **/
+	public void recordLockWait(long startNanos) {
+		lockWait.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Method to record that a transaction was turned away because the database
+	 * was already locked
+	 **/
+	public void recordLockContended() {
+		lockContended.incrementAndGet();
+	}
+
+	/**
+	 * Method to record how long a database read took
+	 * @param startNanos when the read began, from System.nanoTime()
+	 **/
+	public void recordDatabaseRead(long startNanos) {
+		databaseRead.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Method to record how long a database write took
+	 * @param startNanos when the write began, from System.nanoTime()
+	 **/
+	public void recordDatabaseWrite(long startNanos) {
+		databaseWrite.record(microsSince(startNanos));
+	}
+
+	/**
+	 * Method to record that the cohort membership changed
+	 * @param version the version of the new membership view
+	 * @param cohorts the number of cohorts in it
+	 **/
+	public void recordMembership(long version, int cohorts) {
+		membershipVersion = version;
+		cohortCount = cohorts;
+	}
+
+	@Override
+	public String getNode() {
+		return node;
+	}
+
+	@Override
+	public long getCommitCount() {
+		return commits.get();
+	}
+
+	@Override
+	public long getAbortCount() {
+		return aborts.get();
+	}
+
+	@Override
+	public long getUnableCount() {
+		return unables.get();
+	}
+
+	@Override
+	public Map<String, Long> getOutcomesByReason() {
+		return counts(outcomes);
+	}
+
+	@Override
+	public Map<String, LatencyHistogram.Summary> getPhaseLatencyMicros() {
+		Map<String, LatencyHistogram.Summary> result = new TreeMap<String, LatencyHistogram.Summary>();
+		for (Phase phase : Phase.values()) {
+			result.put(phase.toString(), phaseLatency[phase.ordinal()].getSummary());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, LatencyHistogram.Summary> getCohortRoundTripMicros() {
+		Map<String, LatencyHistogram.Summary> result = new TreeMap<String, LatencyHistogram.Summary>();
+		for (Map.Entry<String, LatencyHistogram> entry : cohortRoundTrip.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getSummary());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getCohortTimeouts() {
+		return counts(cohortTimeouts);
+	}
+
+	@Override
+	public LatencyHistogram.Summary getLockWaitMicros() {
+		return lockWait.getSummary();
+	}
+
+	@Override
+	public long getLockContendedCount() {
+		return lockContended.get();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getDatabaseReadMicros() {
+		return databaseRead.getSummary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getDatabaseWriteMicros() {
+		return databaseWrite.getSummary();
+	}
+
+	@Override
+	public long getMembershipVersion() {
+		return membershipVersion;
+	}
+
+	@Override
+	public int getCohortCount() {
+		return cohortCount;
+	}
+
+	@Override
+	public long getDroppedLogLines() {
+		return Log.getDroppedCount();
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram h : phaseLatency) {
+			h.reset();
+		}
+		cohortRoundTrip.clear();
+		cohortTimeouts.clear();
+		outcomes.clear();
+		commits.set(0);
+		aborts.set(0);
+		unables.set(0);
+		lockWait.reset();
+		lockContended.set(0);
+		databaseRead.reset();
+		databaseWrite.reset();
+	}
+
+	/**
+	 * Method to write every metric out in a human readable form
+	 * @param out where to write the metrics to
+	 **/
+	public void dump(PrintWriter out) {
+		out.println("node: " + node);
+		out.println("commits: " + getCommitCount() + " aborts: " + getAbortCount() + " unable: " + getUnableCount());
+		for (Map.Entry<String, Long> entry : getOutcomesByReason().entrySet()) {
+			out.println("  " + entry.getKey() + " = " + entry.getValue());
+		}
+		out.println("phase latency (us):");
+		for (Map.Entry<String, LatencyHistogram.Summary> entry : getPhaseLatencyMicros().entrySet()) {
+			out.println("  " + entry.getKey() + " " + entry.getValue());
+		}
+		out.println("cohort round trip (us):");
+		for (Map.Entry<String, LatencyHistogram.Summary> entry : getCohortRoundTripMicros().entrySet()) {
+			out.println("  " + entry.getKey() + " " + entry.getValue());
+		}
+		out.println("cohort timeouts:");
+		for (Map.Entry<String, Long> entry : getCohortTimeouts().entrySet()) {
+			out.println("  " + entry.getKey() + " = " + entry.getValue());
+		}
+		out.println("membership: v" + getMembershipVersion() + " with " + getCohortCount() + " cohorts");
+		out.println("lock wait (us): " + getLockWaitMicros());
+		out.println("lock contended: " + getLockContendedCount());
+		out.println("database read (us): " + getDatabaseReadMicros());
+		out.println("database write (us): " + getDatabaseWriteMicros());
+		out.println("dropped log lines: " + getDroppedLogLines());
+	}
+
+	/**
+	 * Method to start a background thread that rewrites the metrics file
+	 * periodically. The file is written to a temporary file first and then
+	 * renamed, so a reader never sees half a dump.
+	 * @param file the file to dump to
+	 * @param intervalSeconds how often to dump
+	 **/
+	private void startDumping(final File file, long intervalSeconds) {
+		ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-dump");
+				t.setDaemon(true); //never keep the node alive just to dump metrics
+				return t;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				File temp = new File(file.getPath() + ".tmp");
+				try (PrintWriter out = new PrintWriter(temp)) {
+					out.println("# " + new java.util.Date());
+					dump(out);
+				} catch (IOException e) {
+					Log.forNode(node).error("<Could not write metrics to {}: {}>", temp, e.toString());
+					return;
+				}
+				if (!temp.renameTo(file)) {
+					Log.forNode(node).error("<Could not rename {} to {}>", temp, file);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Helper to bump a named counter, creating it if needed
+	 **/
+	private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Helper to copy a set of named counters into a sorted plain map
+	 **/
+	private static Map<String, Long> counts(ConcurrentHashMap<String, AtomicLong> counters) {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * Helper to turn a start time into elapsed microseconds
+	 **/
+	private static long microsSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+}
@@ -0,0 +1,90 @@
+import java.util.Map;
+
+/**
+ * The management interface for NodeMetrics, which is what gets exposed over
+ * JMX (eg: in jconsole under tpc:type=NodeMetrics). All latencies are in
+ * microseconds and are given as a LatencyHistogram.Summary, which JMX shows
+ * as a CompositeData holding the count, mean and each percentile as numbers.
+ **/
+public interface NodeMetricsMXBean {
+
+	/**
+	 * @return the name of the node these metrics belong to
+	 **/
+	String getNode();
+
+	/**
+	 * @return the number of transactions this node has committed
+	 **/
+	long getCommitCount();
+
+	/**
+	 * @return the number of transactions this node has aborted
+	 **/
+	long getAbortCount();
+
+	/**
+	 * @return the number of times this node was unable to take part in a transaction
+	 **/
+	long getUnableCount();
+
+	/**
+	 * @return counts of every outcome, keyed by "OUTCOME: reason"
+	 **/
+	Map<String, Long> getOutcomesByReason();
+
+	/**
+	 * @return latency summary of each 3PC phase, keyed by phase
+	 **/
+	Map<String, LatencyHistogram.Summary> getPhaseLatencyMicros();
+
+	/**
+	 * @return round trip time summary to each current cohort, keyed by cohort (coordinator only)
+	 **/
+	Map<String, LatencyHistogram.Summary> getCohortRoundTripMicros();
+
+	/**
+	 * @return number of timeouts waiting for each current cohort, keyed by cohort (coordinator only)
+	 **/
+	Map<String, Long> getCohortTimeouts();
+
+	/**
+	 * @return summary of how long transactions waited to lock the database
+	 **/
+	LatencyHistogram.Summary getLockWaitMicros();
+
+	/**
+	 * @return number of transactions turned away because the database was locked
+	 **/
+	long getLockContendedCount();
+
+	/**
+	 * @return summary of how long reading the database took
+	 **/
+	LatencyHistogram.Summary getDatabaseReadMicros();
+
+	/**
+	 * @return summary of how long writing the database took
+	 **/
+	LatencyHistogram.Summary getDatabaseWriteMicros();
+
+	/**
+	 * @return the version of the cohort membership view, bumped whenever a cohort joins or leaves (coordinator only)
+	 **/
+	long getMembershipVersion();
+
+	/**
+	 * @return the number of cohorts in the current membership view (coordinator only)
+	 **/
+	int getCohortCount();
+
+	/**
+	 * @return number of log lines dropped because the log buffer was full
+	 **/
+	long getDroppedLogLines();
+
+	/**
+	 * Zero every counter and histogram
+	 **/
+	void reset();
+}
@@ -0,0 +1,245 @@
+import dcs.os.StockList;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Class to take snapshots of a node's stock in the background. Every database
+ * write hands us the stock that was written and the transaction it was for;
+ * every so often the latest of these is written to <database>.snapshot.<id>
+ * by a background thread, so transactions never wait for a snapshot. Each
+ * snapshot is written to a temporary file, forced to disk and then renamed
+ * into place, so a snapshot file is either complete or not there at all.
+ * Only the newest few snapshots are kept.
+ *
+ * Once a snapshot is on disk the coordinator's decision log is compacted
+ * behind it, and if a node's database goes missing it is restored from the
+ * newest snapshot (plus the decision log tail, on the coordinator).
+ **/
+public class SnapshotManager {
+	private static final int MAGIC = 0x54504353; //"TPCS"
+
+	/**
+	 * The stock of a node as of a transaction
+	 **/
+	public static class Snapshot {
+		public final long transactionId;
+		public final StockList stock;
+
+		Snapshot(long transactionId, StockList stock) {
+			this.transactionId = transactionId;
+			this.stock = stock;
+		}
+	}
+
+	private final Log log;
+	private final File directory; //where the database (and so the snapshots) live
+	private final String prefix; //snapshot file names are prefix + zero padded transaction id
+	private final int retain; //how many snapshots to keep
+	private final DecisionLog decisions; //compacted after each snapshot, null if there isn't one
+	private volatile Snapshot latest; //the last stock written to the database
+	private long lastWritten; //the transaction of the newest snapshot on disk
+	private ScheduledExecutorService snapshotter; //null until start(...)
+
+	/**
+	 * Constructor for a node's snapshots
+	 * @param databasePath the path to the node's database file
+	 * @param retain how many snapshots to keep on disk
+	 * @param decisions the decision log to compact after each snapshot, null for none
+	 * @param log where to log to
+	 **/
+	public SnapshotManager(String databasePath, int retain, DecisionLog decisions, Log log) {
+		File database = new File(databasePath).getAbsoluteFile();
+		this.directory = database.getParentFile();
+		this.prefix = database.getName() + ".snapshot.";
+		this.retain = Math.max(1, retain);
+		this.decisions = decisions;
+		this.log = log;
+		this.lastWritten = -1;
+	}
+
+	/**
+	 * Method to start taking snapshots in the background
+	 * @param intervalSeconds how often to take a snapshot
+	 **/
+	public void start(long intervalSeconds) {
+		snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "snapshot");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		snapshotter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					snapshot();
+				} catch (IOException e) {
+					log.error("<Could not take a snapshot, will try again next time>", e);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Method to note what was just written to the database. The stock must
+	 * not be modified afterwards, the snapshot thread may still be reading it
+	 * @param transactionId the transaction the write was for
+	 * @param stock the stock that was written
+	 **/
+	public void applied(long transactionId, StockList stock) {
+		latest = new Snapshot(transactionId, stock);
+	}
+
+	/**
+	 * Method to write a snapshot of the last stock written, if it has changed
+	 * since the last snapshot, then drop old snapshots and compact the
+	 * decision log behind it. Runs on the snapshot thread (or at close)
+	 **/
+	public synchronized void snapshot() throws IOException {
+		Snapshot current = latest;
+		if (current == null || current.transactionId == lastWritten) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream os = new ObjectOutputStream(bytes);
+		os.writeObject(current.stock);
+		os.close();
+		byte[] body = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		File file = new File(directory, prefix + String.format("%020d", current.transactionId));
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(MAGIC);
+			out.writeLong(current.transactionId);
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeLong(crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		lastWritten = current.transactionId;
+		log.debug("<Snapshot of transaction {} written to {}>", current.transactionId, file);
+
+		File[] snapshots = list();
+		int oldestKept = Math.max(0, snapshots.length - retain);
+		for (int i = 0; i < oldestKept; i++) {
+			if (!snapshots[i].delete()) {
+				log.warn("<Could not delete old snapshot {}>", snapshots[i]);
+			}
+		}
+		if (decisions != null) {
+			/* Compact behind the oldest snapshot we keep rather than the newest, so
+			 * if the newest turns out to be damaged an older one plus the log still
+			 * gets us back to where we were */
+			long covered = transactionOf(snapshots[oldestKept]);
+			long saved = decisions.compact(covered);
+			log.debug("<Decision log compacted behind transaction {}, {} bytes freed>", covered, saved);
+		}
+	}
+
+	/**
+	 * Method to read the newest snapshot that is intact, skipping any that are
+	 * damaged
+	 * @return the newest snapshot, null if there are none
+	 **/
+	public Snapshot loadNewest() {
+		File[] snapshots = list();
+		for (int i = snapshots.length - 1; i >= 0; i--) {
+			try {
+				return read(snapshots[i]);
+			} catch (IOException e) {
+				log.warn("<Skipping damaged snapshot {}: {}>", snapshots[i], e.toString());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Method to stop taking snapshots, taking one last snapshot first
+	 **/
+	public void close() throws IOException {
+		if (snapshotter == null) {
+			return;
+		}
+		snapshotter.shutdown();
+		try {
+			snapshotter.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		snapshot();
+	}
+
+	/**
+	 * Helper to list the snapshot files, oldest first
+	 **/
+	private File[] list() {
+		File[] snapshots = directory.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(prefix) && f.getName().substring(prefix.length()).matches("[0-9]+");
+			}
+		});
+		if (snapshots == null) {
+			return new File[0];
+		}
+		Arrays.sort(snapshots); //zero padded ids, so name order is transaction order
+		return snapshots;
+	}
+
+	/**
+	 * Helper to get the transaction a snapshot file is for from its name
+	 **/
+	private long transactionOf(File snapshot) {
+		return Long.parseLong(snapshot.getName().substring(prefix.length()));
+	}
+
+	/**
+	 * Helper to read and check one snapshot file
+	 **/
+	private static Snapshot read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a snapshot");
+			}
+			long transactionId = in.readLong();
+			int length = in.readInt();
+			if (length < 0 || length > 16 * 1024 * 1024) {
+				throw new IOException("invalid length " + length);
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if (in.readLong() != crc.getValue()) {
+				throw new IOException("checksum mismatch");
+			}
+			ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(body));
+			return new Snapshot(transactionId, (StockList)is.readObject());
+		} catch (ClassNotFoundException e) {
+			throw new IOException("unreadable stock", e);
+		}
+	}
+}
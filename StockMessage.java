@@ -9,6 +9,8 @@ import dcs.os.StockList;
 public class StockMessage implements Serializable {
 	private StockList stock; //the stock being requested; null means no stock requested
 	private Message message; //the message being sent between servers
+	private Message piggyback; //an earlier message riding along with this one; null means none
+	private long transactionId; //the coordinator's id for the transaction; 0 means not given
 
 	/**
 	 * Constructor to send a message with a stock request
@@ -16,8 +18,36 @@ public class StockMessage implements Serializable {
 	 * @param message the message being sent between servers
 	 **/
 	public StockMessage(StockList stock, Message message) {
+		this(stock, message, null);
+	}
+
+	/**
+	 * Constructor to send a message with a stock request and another message
+	 * piggybacked on it. In the piggyback protocol the COMMIT decision for one
+	 * transaction rides on the next transaction's QUERY, and a cohort's
+	 * ACK_FINAL rides on its next vote, saving a message each way.
+	 * @param stock the stock request being made, may be null
+	 * @param message the message being sent between servers
+	 * @param piggyback the earlier message riding along, null for none
+	 **/
+	public StockMessage(StockList stock, Message message, Message piggyback) {
+		this(0, stock, message, piggyback);
+	}
+
+	/**
+	 * Constructor to send a message tagged with the id of its transaction. The
+	 * coordinator tags each QUERY so that every node's trace events for the
+	 * transaction share the same id
+	 * @param transactionId the coordinator's id for the transaction
+	 * @param stock the stock request being made, may be null
+	 * @param message the message being sent between servers
+	 * @param piggyback the earlier message riding along, null for none
+	 **/
+	public StockMessage(long transactionId, StockList stock, Message message, Message piggyback) {
+		this.transactionId = transactionId;
 		this.stock = stock;
 		this.message = message;
+		this.piggyback = piggyback;
 	}
 
 	/**
@@ -52,6 +82,22 @@ public class StockMessage implements Serializable {
 		return message;
 	}
 
+	/**
+	 * Getter for the id of the transaction this message is part of
+	 * @return the transaction id, 0 if the message wasn't tagged with one
+	 **/
+	public long getTransactionId() {
+		return transactionId;
+	}
+
+	/**
+	 * Getter for the piggybacked message
+	 * @return the earlier message riding along with this one, null if there is none
+	 **/
+	public Message getPiggyback() {
+		return piggyback;
+	}
+
 	/**
 	 * Get string representation of message. It's not particularly useful to
 	 * print out the stock since we usually know what it is prior to construction.
@@ -59,6 +105,6 @@ public class StockMessage implements Serializable {
 	 * @return a string representation of the message but WITHOUT any detail on
 	 * the stock itself */
 	public String toString() {
-		return message.toString();
+		return piggyback == null ? message.toString() : message + "+" + piggyback;
 	}
 }
@@ -0,0 +1,174 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for tracing a transaction across every node.
+ * Each event carries the transaction id the coordinator gave the transaction
+ * (sent to cohorts in the QUERY) and the node it happened on, so recordings
+ * from every node can be merged into one timeline per transaction with
+ * TraceMerge. When no recording is running these events are close to free:
+ * begin()/end() are no-ops and shouldCommit() is false.
+ *
+ * Record with eg: java -XX:StartFlightRecording=filename=coordinator.jfr ...
+ **/
+public final class TraceEvents {
+
+	/* The transaction the current thread is working on. A long[] so setting it
+	 * doesn't box a Long every transaction */
+	private static final ThreadLocal<long[]> transaction = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private TraceEvents() {
+	}
+
+	/**
+	 * Method to set the transaction the current thread is working on, so events
+	 * raised deeper down (eg: database reads) can be tagged with it
+	 * @param transactionId the transaction id
+	 **/
+	public static void setTransaction(long transactionId) {
+		transaction.get()[0] = transactionId;
+	}
+
+	/**
+	 * Getter for the transaction the current thread is working on
+	 * @return the transaction id, 0 if none has been set
+	 **/
+	public static long getTransaction() {
+		return transaction.get()[0];
+	}
+
+	/**
+	 * Helper to start a trace event for a phase of the current thread's transaction
+	 * @param phase the message that starts the phase
+	 * @return the started event, pass it to finishPhase(...)
+	 **/
+	public static Phase startPhase(Message phase) {
+		Phase event = new Phase();
+		event.begin();
+		event.phase = phase.toString();
+		return event;
+	}
+
+	/**
+	 * Helper to finish (and record, if recording) a phase trace event
+	 * @param event the event from startPhase(...)
+	 * @param outcome what the phase decided
+	 **/
+	public static void finishPhase(Phase event, Message outcome) {
+		event.outcome = String.valueOf(outcome);
+		event.finish();
+	}
+
+	/**
+	 * Helper to record that a vote (or other reply) was sent
+	 * @param peer the node the vote was sent to
+	 * @param message the vote
+	 **/
+	public static void vote(String peer, Message message) {
+		Vote event = new Vote();
+		event.begin();
+		event.peer = peer;
+		event.message = String.valueOf(message);
+		event.finish();
+	}
+
+	/**
+	 * Helper to record that we gave up waiting for a peer
+	 * @param transactionId the transaction, 0 for the current thread's
+	 * @param peer the node we were waiting for
+	 * @param waitingFor what we were waiting for
+	 **/
+	public static void timeout(long transactionId, String peer, String waitingFor) {
+		Timeout event = new Timeout();
+		event.begin();
+		event.transactionId = transactionId;
+		event.peer = peer;
+		event.waitingFor = waitingFor;
+		event.finish();
+	}
+
+	/**
+	 * Fields every tracing event has
+	 **/
+	@Category("3PC")
+	@StackTrace(false)
+	public abstract static class TransactionEvent extends Event {
+		@Label("Transaction Id")
+		public long transactionId;
+
+		@Label("Node")
+		public String node;
+
+		/**
+		 * Method to end the event and commit it (if it's being recorded), tagged
+		 * with the current thread's transaction and this node's name
+		 **/
+		public void finish() {
+			end();
+			if (shouldCommit()) {
+				if (transactionId == 0) {
+					transactionId = getTransaction();
+				}
+				node = NodeMetrics.get().getNode();
+				commit();
+			}
+		}
+	}
+
+	@Name("tpc.Phase")
+	@Label("3PC Phase")
+	@Description("One phase of a transaction on one node, from start to end")
+	public static class Phase extends TransactionEvent {
+		@Label("Phase")
+		public String phase;
+
+		@Label("Outcome")
+		public String outcome;
+	}
+
+	@Name("tpc.Vote")
+	@Label("Vote")
+	@Description("A reply in the protocol; sent by a cohort or, on the coordinator, the round trip to get it")
+	public static class Vote extends TransactionEvent {
+		@Label("Peer")
+		public String peer;
+
+		@Label("Message")
+		public String message;
+	}
+
+	@Name("tpc.Lock")
+	@Label("Database Lock")
+	@Description("Waiting for and taking the database lock")
+	public static class Lock extends TransactionEvent {
+		@Label("Acquired")
+		public boolean acquired;
+	}
+
+	@Name("tpc.Database")
+	@Label("Database I/O")
+	@Description("A queryDatabase or writeDatabase call")
+	public static class Database extends TransactionEvent {
+		@Label("Operation")
+		public String operation;
+	}
+
+	@Name("tpc.Timeout")
+	@Label("Timeout")
+	@Description("Gave up waiting for a peer")
+	public static class Timeout extends TransactionEvent {
+		@Label("Peer")
+		public String peer;
+
+		@Label("Waiting For")
+		public String waitingFor;
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jdk.jfr.ValueDescriptor;
+
+/**
+ * Offline tool to merge the flight recordings of every node into a single
+ * timeline per transaction, see TraceEvents. Events are lined up by their
+ * wall clock start time, so the timeline is only as accurate as the clocks
+ * on the machines that made the recordings are in sync (exact when every
+ * node ran on the same machine).
+ *
+ * Usage: java TraceMerge coordinator.jfr cohort1.jfr cohort2.jfr ...
+ **/
+public class TraceMerge {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: java TraceMerge <recording.jfr> [<recording.jfr> ...]");
+			System.exit(1);
+		}
+
+		/* Group every 3PC event from every recording by transaction, in id order */
+		Map<Long, List<RecordedEvent>> transactions = new TreeMap<Long, List<RecordedEvent>>();
+		for (String arg : args) {
+			Path path = Paths.get(arg);
+			for (RecordedEvent event : RecordingFile.readAllEvents(path)) {
+				if (!event.getEventType().getName().startsWith("tpc.")) {
+					continue;
+				}
+				long transactionId = event.getLong("transactionId");
+				List<RecordedEvent> events = transactions.get(transactionId);
+				if (events == null) {
+					events = new ArrayList<RecordedEvent>();
+					transactions.put(transactionId, events);
+				}
+				events.add(event);
+			}
+		}
+
+		for (Map.Entry<Long, List<RecordedEvent>> entry : transactions.entrySet()) {
+			printTimeline(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Helper to print the timeline of one transaction
+	 * @param transactionId the transaction, 0 for events outside of any transaction
+	 * @param events every event for the transaction, from every node
+	 **/
+	private static void printTimeline(long transactionId, List<RecordedEvent> events) {
+		Collections.sort(events, new Comparator<RecordedEvent>() {
+			public int compare(RecordedEvent a, RecordedEvent b) {
+				return a.getStartTime().compareTo(b.getStartTime());
+			}
+		});
+		Instant start = events.get(0).getStartTime();
+		Instant end = start;
+		for (RecordedEvent event : events) {
+			if (event.getEndTime().isAfter(end)) {
+				end = event.getEndTime();
+			}
+		}
+
+		System.out.println(String.format("=== Transaction %s (%.3f ms) ===",
+			transactionId == 0 ? "<none>" : String.valueOf(transactionId), millis(Duration.between(start, end))));
+		for (RecordedEvent event : events) {
+			System.out.println(String.format("  +%9.3f ms %9.3f ms  %-24s %-12s %s",
+				millis(Duration.between(start, event.getStartTime())), millis(event.getDuration()),
+				event.getString("node"), event.getEventType().getName().substring(4), details(event)));
+		}
+		System.out.println();
+	}
+
+	/**
+	 * Helper to list the fields particular to an event's type, eg: phase=QUERY outcome=READY
+	 **/
+	private static String details(RecordedEvent event) {
+		StringBuilder details = new StringBuilder();
+		for (ValueDescriptor field : event.getFields()) {
+			String name = field.getName();
+			if (name.equals("startTime") || name.equals("duration") || name.equals("eventThread") || name.equals("stackTrace")
+					|| name.equals("transactionId") || name.equals("node")) {
+				continue;
+			}
+			if (details.length() > 0) {
+				details.append(' ');
+			}
+			Object value = event.getValue(name);
+			details.append(name).append('=').append(value);
+		}
+		return details.toString();
+	}
+
+	/**
+	 * Helper to convert a duration to fractional milliseconds
+	 **/
+	private static double millis(Duration duration) {
+		return duration.toNanos() / 1e6;
+	}
+}
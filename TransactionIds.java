@@ -0,0 +1,78 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Class to hand out the coordinator's transaction ids. An id must never be
+ * used twice, even across a crash: cohorts name and keep their snapshots by
+ * transaction id, and trace events from every node are matched up by it.
+ *
+ * Rather than write down every id as it is used, ids are reserved a block at
+ * a time in <database>.txids, which is forced to disk before any id in the
+ * block is handed out. After a crash we carry on after the reserved block,
+ * skipping whatever was left of it. The file is written to a temporary file
+ * and renamed into place, so it always holds one whole reservation.
+ **/
+public class TransactionIds {
+	private static final long BLOCK = 1000; //ids reserved at a time
+
+	private final File file;
+	private long last; //the id last handed out
+	private long reserved; //ids up to and including this can be handed out without touching the file
+
+	/**
+	 * Constructor carries on from the last reservation, if there is one
+	 * @param file the file reservations are kept in
+	 * @param lastUsed the highest id known to have been used some other way, eg: from a snapshot
+	 **/
+	public TransactionIds(File file, long lastUsed) throws IOException {
+		this.file = file;
+		this.last = Math.max(lastUsed, readReserved());
+		this.reserved = last;
+	}
+
+	/**
+	 * Method to take the next transaction id, reserving another block first
+	 * if this one is used up
+	 * @return the id, higher than any handed out before
+	 **/
+	public synchronized long next() throws IOException {
+		if (last == reserved) {
+			reserve(last + BLOCK);
+		}
+		return ++last;
+	}
+
+	/**
+	 * Helper to durably reserve every id up to and including the one given
+	 **/
+	private void reserve(long upTo) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeLong(upTo);
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		reserved = upTo;
+	}
+
+	/**
+	 * Helper to read the last reservation
+	 * @return the highest id reserved, 0 if nothing has been reserved yet
+	 **/
+	private long readReserved() throws IOException {
+		if (!file.exists()) {
+			return 0;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readLong();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+import dcs.os.StockList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Class that sits in front of the coordinator's 3PC rounds and decides which
+ * waiting client request goes next. Without it a request that arrives while
+ * another is in progress is turned away as "database locked".
+ *
+ * Requests wait in a queue and are run one at a time by a dispatcher thread
+ * (each cohort connection carries one transaction at a time). Two requests
+ * conflict when our cached inventory can't satisfy both of them together, so
+ * whichever runs second is bound to fail. Before each round the dispatcher:
+ *  - refuses straight away any request the inventory can't satisfy at all,
+ *    rather than spending a 3PC round to find that out
+ *  - picks the request that conflicts with the fewest others still waiting,
+ *    so as many requests as possible can commit (oldest first on a tie)
+ *  - never passes over a request more than maxBypass times, so requests for
+ *    a hot item can't be starved by a stream of smaller ones
+ **/
+public class TransactionScheduler {
+	private static final Log log = Log.forNode("coordinator");
+	private static final int WINDOW = 16; //how many waiting requests are considered each round
+
+	/**
+	 * What the scheduler needs from the coordinator
+	 **/
+	public interface Engine {
+		/**
+		 * @return the stock in the coordinator's database, once any transaction in progress has finished
+		 **/
+		StockList inventory() throws IOException;
+
+		/**
+		 * Run a transaction through 3PC
+		 * @param stock the stock being requested
+		 * @return true if it committed
+		 **/
+		boolean execute(StockList stock) throws IOException;
+	}
+
+	/**
+	 * A client request waiting for its turn
+	 **/
+	private static class Request {
+		final StockList stock;
+		int bypassed; //times a newer request went first
+		boolean result;
+		IOException failure;
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Request(StockList stock) {
+			this.stock = stock;
+		}
+
+		void finish(boolean result, IOException failure) {
+			this.result = result;
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+
+	private final Engine engine;
+	private final int maxBypass;
+	private final int maxQueued;
+	private final List<Request> queue; //oldest first, guarded by itself
+	private volatile byte[] inventory; //serialized inventory as of the last round, null until the first
+	private final NodeMetrics metrics;
+
+	/**
+	 * Constructor creates the scheduler and starts its dispatcher thread
+	 * @param engine runs the transactions
+	 * @param maxBypass how many times a request may be passed over, 0 for first come first served
+	 * @param maxQueued how many requests may wait before new ones are turned away
+	 **/
+	public TransactionScheduler(Engine engine, int maxBypass, int maxQueued) {
+		this.engine = engine;
+		this.maxBypass = maxBypass;
+		this.maxQueued = maxQueued;
+		this.queue = new ArrayList<Request>();
+		this.metrics = NodeMetrics.get();
+
+		Thread dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "scheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Method to run a client request once the scheduler gives it a turn.
+	 * Blocks until the request has committed, aborted or been refused
+	 * @param stock the stock being requested
+	 * @return true if the request committed
+	 **/
+	public boolean submit(StockList stock) throws IOException {
+		byte[] known = inventory;
+		if (known != null && !copy(known).enough(stock)) {
+			log.info("<Refusing request, there is not enough stock for it>");
+			metrics.recordOutcome(Message.UNABLE, "refused by scheduler: not enough stock");
+			return false;
+		}
+
+		Request request = new Request(stock);
+		synchronized (queue) {
+			if (queue.size() >= maxQueued) {
+				log.warn("<Refusing request, {} requests are already waiting>", queue.size());
+				metrics.recordOutcome(Message.UNABLE, "refused by scheduler: queue full");
+				return false;
+			}
+			queue.add(request);
+			queue.notify();
+		}
+
+		try {
+			request.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the scheduler", e);
+		}
+		if (request.failure != null) {
+			throw request.failure;
+		}
+		return request.result;
+	}
+
+	/**
+	 * Method run on the dispatcher thread; runs waiting requests one at a time
+	 **/
+	private void dispatch() {
+		while (true) {
+			try {
+				synchronized (queue) {
+					while (queue.isEmpty()) {
+						queue.wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			Request next;
+			try {
+				byte[] known = serialize(engine.inventory());
+				inventory = known;
+				next = pickNext(known);
+			} catch (IOException e) {
+				/* Can't see the inventory, fall back to first come first served */
+				log.error("<Could not read the inventory for scheduling>", e);
+				synchronized (queue) {
+					next = queue.remove(0);
+				}
+			}
+			if (next == null) {
+				continue; //everything waiting was refused
+			}
+
+			try {
+				next.finish(engine.execute(next.stock), null);
+			} catch (IOException e) {
+				next.finish(false, e);
+			} catch (RuntimeException e) {
+				log.error("<Transaction failed>", e);
+				next.finish(false, new IOException(e));
+			}
+		}
+	}
+
+	/**
+	 * Method to refuse requests that can no longer succeed and choose which of
+	 * the rest goes next, see the class comment
+	 * @param known the serialized inventory
+	 * @return the request to run next (taken off the queue), null if none are left
+	 **/
+	private Request pickNext(byte[] known) throws IOException {
+		List<Request> window;
+		synchronized (queue) {
+			window = new ArrayList<Request>(queue.subList(0, Math.min(WINDOW, queue.size())));
+		}
+
+		StockList stock = copy(known);
+		List<Request> feasible = new ArrayList<Request>(window.size());
+		for (Request request : window) {
+			if (stock.enough(request.stock)) {
+				feasible.add(request);
+			} else {
+				log.info("<Refusing waiting request, there is no longer enough stock for it>");
+				metrics.recordOutcome(Message.UNABLE, "refused by scheduler: not enough stock");
+				request.finish(false, null);
+			}
+		}
+
+		Request chosen = null;
+		if (!feasible.isEmpty() && (feasible.size() == 1 || feasible.get(0).bypassed >= maxBypass)) {
+			chosen = feasible.get(0); //no choice to make, or it has waited long enough
+		} else {
+			int fewest = Integer.MAX_VALUE;
+			for (Request candidate : feasible) {
+				/* What's left if the candidate commits, and who could still commit after it */
+				StockList after = copy(known);
+				after.remove(candidate.stock);
+				int conflicts = 0;
+				for (Request other : feasible) {
+					if (other != candidate && !after.enough(other.stock)) {
+						conflicts++;
+					}
+				}
+				if (conflicts < fewest) {
+					fewest = conflicts;
+					chosen = candidate;
+				}
+			}
+		}
+
+		synchronized (queue) {
+			queue.removeAll(window);
+			/* Put back everything that is still waiting, in the same order */
+			int i = 0;
+			for (Request request : feasible) {
+				if (request == chosen) {
+					break;
+				}
+				request.bypassed++;
+				log.debug("<Passed over a waiting request ({} times)>", request.bypassed);
+			}
+			for (Request request : feasible) {
+				if (request != chosen) {
+					queue.add(i++, request);
+				}
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Helper to serialize a stock list so it can be copied cheaply
+	 **/
+	private static byte[] serialize(StockList stock) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream os = new ObjectOutputStream(bytes);
+		os.writeObject(stock);
+		os.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Helper to make a private copy of a serialized stock list, so it can be
+	 * changed without touching anyone else's
+	 **/
+	private static StockList copy(byte[] stock) throws IOException {
+		try {
+			ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(stock));
+			return (StockList)is.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unreadable inventory", e);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+#!/bin/bash
+
+# We run the load generator against the coordinator's client port. Any extra
+# arguments are passed straight through to LoadGenerator, eg:
+#	./runLoad.sh --concurrency 16 --rate 50,100,200,400 --skew zipf
+
+# Note that if you choose to change the client port you must also change it in
+# runServers.sh
+
+clientPort=9050;
+java -cp .:TPC.jar LoadGenerator localhost:$clientPort "$@";
+
+exit 0;